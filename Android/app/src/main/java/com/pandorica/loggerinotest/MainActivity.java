@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.pandorica.loggerino.LogKeeper;
 import com.pandorica.loggerino.Logger;
 
 
@@ -36,7 +37,7 @@ public class MainActivity extends ActionBarActivity {
 
     private Runnable logRun = new Runnable() {
         public void run() {
-            mLogger.e("Test","count: " + count);
+            mLogger.logf(LogKeeper.LogType.E, "Test", "count: %d", count);
             count++;
             mHandler.postDelayed(this, 1000);
         }
@@ -0,0 +1,12 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+// JVM stand-in for the Android class, just what Loggerino uses
+public class PendingIntent {
+
+    public static PendingIntent getBroadcast(Context context, int requestCode, Intent intent, int flags){
+        return new PendingIntent();
+    }
+}
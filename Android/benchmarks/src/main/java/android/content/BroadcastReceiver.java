@@ -0,0 +1,7 @@
+package android.content;
+
+// JVM stand-in for the Android class, never called
+public abstract class BroadcastReceiver {
+
+    public abstract void onReceive(Context context, Intent intent);
+}
@@ -0,0 +1,40 @@
+package android.content;
+
+import android.hardware.usb.UsbManager;
+
+import java.io.File;
+
+/* JVM stand-in for the Android class, just what Loggerino uses
+ *
+ * There is no USB on the JVM: the USB manager never finds a device, so sessions only come from
+ * LogKeeper.connect(). Files go in the directory given to the constructor.
+ */
+public class Context {
+
+    public static final String USB_SERVICE = "usb";
+
+    private final UsbManager mUsbManager = new UsbManager();
+    private final File mFilesDir;
+
+    /* Constructor
+     * param filesDir   Returned by getFilesDir()
+     */
+    public Context(File filesDir){
+        mFilesDir = filesDir;
+    }
+
+    public Object getSystemService(String name){
+        return USB_SERVICE.equals(name) ? mUsbManager : null;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter){
+        return null; // Nothing is ever broadcast
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver){
+    }
+
+    public File getFilesDir(){
+        return mFilesDir;
+    }
+}
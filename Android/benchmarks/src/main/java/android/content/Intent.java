@@ -0,0 +1,23 @@
+package android.content;
+
+// JVM stand-in for the Android class, just what Loggerino uses
+public class Intent {
+
+    private final String mAction;
+
+    public Intent(String action){
+        mAction = action;
+    }
+
+    public String getAction(){
+        return mAction;
+    }
+
+    public <T> T getParcelableExtra(String name){
+        return null;
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue){
+        return defaultValue;
+    }
+}
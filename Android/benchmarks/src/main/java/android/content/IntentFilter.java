@@ -0,0 +1,11 @@
+package android.content;
+
+// JVM stand-in for the Android class, just what Loggerino uses
+public class IntentFilter {
+
+    public IntentFilter(String action){
+    }
+
+    public void addAction(String action){
+    }
+}
@@ -0,0 +1,9 @@
+package android.hardware.usb;
+
+// JVM stand-in for the Android class, never created
+public class UsbDevice {
+
+    public String getDeviceName(){
+        return "";
+    }
+}
@@ -0,0 +1,5 @@
+package android.hardware.usb;
+
+// JVM stand-in for the Android class, never created
+public class UsbDeviceConnection {
+}
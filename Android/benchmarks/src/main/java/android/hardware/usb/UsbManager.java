@@ -0,0 +1,19 @@
+package android.hardware.usb;
+
+import android.app.PendingIntent;
+
+// JVM stand-in for the Android class: there are no devices, and opening one gives no connection
+public class UsbManager {
+
+    public static final String ACTION_USB_DEVICE_ATTACHED = "android.hardware.usb.action.USB_DEVICE_ATTACHED";
+    public static final String ACTION_USB_DEVICE_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
+    public static final String EXTRA_DEVICE = "device";
+    public static final String EXTRA_PERMISSION_GRANTED = "permission";
+
+    public UsbDeviceConnection openDevice(UsbDevice device){
+        return null;
+    }
+
+    public void requestPermission(UsbDevice device, PendingIntent pi){
+    }
+}
@@ -0,0 +1,69 @@
+package android.util;
+
+/* JVM stand-in for the Android class, just what Loggerino uses
+ *
+ * Everything is discarded, so benchmarks measure Loggerino rather than a console. Set the
+ * system property loggerino.logcat to print to stderr instead.
+ */
+public final class Log {
+
+    private static final boolean PRINT = Boolean.getBoolean("loggerino.logcat");
+
+    private Log(){
+    }
+
+    public static int d(String tag, String msg){
+        return println("D", tag, msg, null);
+    }
+
+    public static int d(String tag, String msg, Throwable tr){
+        return println("D", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg){
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr){
+        return println("E", tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg){
+        return println("I", tag, msg, null);
+    }
+
+    public static int i(String tag, String msg, Throwable tr){
+        return println("I", tag, msg, tr);
+    }
+
+    public static int w(String tag, String msg){
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr){
+        return println("W", tag, msg, tr);
+    }
+
+    public static int v(String tag, String msg){
+        return println("V", tag, msg, null);
+    }
+
+    public static int v(String tag, String msg, Throwable tr){
+        return println("V", tag, msg, tr);
+    }
+
+    public static int wtf(String tag, String msg){
+        return println("A", tag, msg, null);
+    }
+
+    public static int wtf(String tag, String msg, Throwable tr){
+        return println("A", tag, msg, tr);
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr){
+        if (!PRINT) return 0;
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null) tr.printStackTrace();
+        return 0;
+    }
+}
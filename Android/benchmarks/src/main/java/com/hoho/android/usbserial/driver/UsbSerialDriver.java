@@ -0,0 +1,13 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+
+import java.util.List;
+
+// JVM stand-in for the serial library interface, implemented in memory by LoopbackSerialDriver
+public interface UsbSerialDriver {
+
+    UsbDevice getDevice();
+
+    List<UsbSerialPort> getPorts();
+}
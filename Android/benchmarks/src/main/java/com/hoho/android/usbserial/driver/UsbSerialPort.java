@@ -0,0 +1,24 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import java.io.IOException;
+
+// JVM stand-in for the serial library interface, implemented in memory by LoopbackSerialDriver
+public interface UsbSerialPort {
+
+    int STOPBITS_1 = 1;
+    int PARITY_NONE = 0;
+
+    void open(UsbDeviceConnection connection) throws IOException;
+
+    void close() throws IOException;
+
+    int read(byte[] dest, int timeout) throws IOException;
+
+    void write(byte[] src, int length, int timeout) throws IOException;
+
+    void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException;
+
+    boolean purgeHwBuffers(boolean flushReadBuffers, boolean flushWriteBuffers) throws IOException;
+}
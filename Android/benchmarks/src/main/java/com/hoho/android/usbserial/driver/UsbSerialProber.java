@@ -0,0 +1,20 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbManager;
+
+import java.util.Collections;
+import java.util.List;
+
+// JVM stand-in for the serial library class, finds no devices
+public class UsbSerialProber {
+
+    private static final UsbSerialProber DEFAULT = new UsbSerialProber();
+
+    public static UsbSerialProber getDefaultProber(){
+        return DEFAULT;
+    }
+
+    public List<UsbSerialDriver> findAllDrivers(UsbManager usbManager){
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,44 @@
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// JVM stand-in for the serial library class: reads the port on its own thread and hands each read
+// to the listener in a new array, as the library does
+public class SerialInputOutputManager implements Runnable {
+
+    public interface Listener {
+
+        void onNewData(byte[] data);
+
+        void onRunError(Exception e);
+    }
+
+    private final UsbSerialPort mPort;
+    private final Listener mListener;
+    private volatile boolean mStopped = false;
+
+    public SerialInputOutputManager(UsbSerialPort port, Listener listener){
+        mPort = port;
+        mListener = listener;
+    }
+
+    @Override
+    public void run(){
+        byte[] buffer = new byte[4096];
+        try {
+            while (!mStopped) {
+                int n = mPort.read(buffer, 200);
+                if (n > 0) mListener.onNewData(Arrays.copyOf(buffer, n));
+            }
+        }catch (IOException ex){
+            if (!mStopped) mListener.onRunError(ex);
+        }
+    }
+
+    public void stop(){
+        mStopped = true;
+    }
+}
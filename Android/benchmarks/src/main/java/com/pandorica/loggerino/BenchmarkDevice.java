@@ -0,0 +1,144 @@
+package com.pandorica.loggerino;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* The least a v2 device has to do, so benchmarks can push frames through a real session
+ *
+ * Syncs over a LoopbackTransport offering protocol v2, then ACKs every frame as soon
+ * as it has read it and counts the entries in it. Nothing is displayed and nothing is asked for,
+ * so the cost measured is the Android side plus an in-memory copy.
+ */
+class BenchmarkDevice extends Thread {
+
+    private static final byte SOH = 0x01, STX = 0x02, ETX = 0x03, EOT = 0x04, ENQ = 0x05, ACK = 0x06;
+    private static final byte SYN = 0x16, ETB = 0x17;
+    private static final byte BATCH_TYPE = 0x03;
+    private static final int HEADER_LENGTH = 10;    // SOH to ETB of a v2 frame
+
+    private final LoopbackTransport mTransport;
+    private final int mWidth;
+    private final boolean mBatch;
+    private final byte[] mIn = new byte[4096];
+    private int mInPos = 0;
+    private int mInEnd = 0;
+    private final byte[] mHeader = new byte[HEADER_LENGTH];
+    private final byte[] mAck = new byte[2];
+
+    private final AtomicLong mEntries = new AtomicLong();   // Entries received
+    private final AtomicLong mFrames = new AtomicLong();    // Frames received
+    private volatile boolean mSynced = false;
+
+    /* Constructor
+     * param transport  The transport a session was connected with
+     * param width      Display width reported at sync
+     * param batch      Offer batch messages
+     */
+    BenchmarkDevice(LoopbackTransport transport, int width, boolean batch){
+        super("BenchmarkDevice");
+        setDaemon(true);
+        mTransport = transport;
+        mWidth = width;
+        mBatch = batch;
+    }
+
+    // Returns the number of entries received so far
+    long getEntries(){
+        return mEntries.get();
+    }
+
+    // Returns the number of frames received so far
+    long getFrames(){
+        return mFrames.get();
+    }
+
+    /* Wait for the session to finish syncing
+     * param timeout    Longest to wait, in ms
+     * returns          True if it did
+     * throws InterruptedException on interrupt
+     */
+    boolean awaitSync(long timeout) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mSynced && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        return mSynced;
+    }
+
+    /* Wait until a number of entries have been received
+     * param count      Total entries to wait for
+     * param timeout    Longest to wait, in ms
+     * returns          True if they arrived
+     */
+    boolean awaitEntries(long count, long timeout){
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (mEntries.get() < count) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @Override
+    public void run(){
+        try {
+            sync();
+            mSynced = true;
+            while (!interrupted()) readFrame();
+        }catch (InterruptedException | IOException ex){
+            // Session closed, or the benchmark is over
+        }
+    }
+
+    // Ask for a sync and offer v2, a window of 8, batching if wanted and no faster baud rate
+    private void sync() throws IOException, InterruptedException{
+        byte resp;
+        do {
+            send(new byte[]{ENQ});
+            resp = readByte(1000);
+        } while (resp != SYN);
+        send(new byte[]{ACK, SOH, (byte) mWidth, ETB, 4, 2, 8, (byte) (mBatch ? 0x01 : 0), 0, EOT});
+
+        // ACK ETB <length> <version> <window> <caps> <baud> EOT
+        for (int i = 0; i < 8; i++) readByte(1000);
+    }
+
+    // Read one frame and ACK it, without allocating so only the session shows up in allocation rates
+    private void readFrame() throws IOException, InterruptedException{
+        if (readByte(0) != SOH) return; // Only frames come this way
+        byte[] header = mHeader;
+        header[0] = SOH;
+        for (int i = 1; i < HEADER_LENGTH; i++) header[i] = readByte(500);
+        int seq = header[4] & 0xff;
+        int len = (header[7] & 0xff) | (header[8] & 0xff) << 8;
+
+        if (readByte(500) != STX) return;
+        byte first = 0;
+        for (int i = 0; i < len; i++) {
+            byte b = readByte(500);
+            if (i == 0) first = b;
+        }
+        if (readByte(500) != ETX || readByte(500) != EOT) return;
+
+        mAck[0] = ACK;
+        mAck[1] = (byte) seq;
+        mTransport.send(mAck, 0, 2);
+        mFrames.incrementAndGet();
+        mEntries.addAndGet(header[3] == BATCH_TYPE ? first & 0xff : 1);
+    }
+
+    private void send(byte[] bytes){
+        mTransport.send(bytes, 0, bytes.length);
+    }
+
+    // Read a byte, waiting up to timeout ms, or for ever if 0
+    private byte readByte(long timeout) throws IOException, InterruptedException{
+        while (mInPos == mInEnd) {
+            int n = mTransport.read(mIn, 0, mIn.length, timeout == 0 ? 1000 : timeout);
+            if (n < 0) throw new EOFException();
+            if (n == 0 && timeout != 0) throw new IOException("Timed out");
+            mInPos = 0;
+            mInEnd = n;
+        }
+        return mIn[mInPos++];
+    }
+}
@@ -0,0 +1,80 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+import android.hardware.usb.UsbManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// Set-up shared by the benchmarks
+final class BenchmarkSupport {
+
+    // A long message about the size of a short stack trace
+    static final String LONG_TEXT;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) sb.append("    at com.example.app.Worker.step").append(i).append("(Worker.java:").append(40 + i).append(")\n");
+        LONG_TEXT = sb.toString();
+    }
+
+    private BenchmarkSupport(){
+    }
+
+    // Returns a Context whose files go in a new temporary directory
+    static Context newContext() throws IOException{
+        return new Context(Files.createTempDirectory("loggerino-bench").toFile());
+    }
+
+    // Delete a directory made by newContext(), and everything in it
+    static void delete(File file){
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) delete(child);
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    /* Distinct short messages, so the repeat detection doesn't collapse them
+     * param prefix Start of every message
+     * param count  How many, a power of two so callers can mask
+     * returns      The messages
+     */
+    static String[] messages(String prefix, int count){
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) messages[i] = prefix + " event " + i;
+        return messages;
+    }
+
+    /* Connect a BenchmarkDevice to a keeper over a LoopbackTransport and wait for it to sync
+     * param keeper The keeper
+     * param batch  Offer batch messages
+     * returns      The device, already receiving
+     * throws Exception if it doesn't sync
+     */
+    static BenchmarkDevice connectDevice(LogKeeper keeper, boolean batch) throws Exception{
+        LoopbackTransport transport = new LoopbackTransport(65536);
+        keeper.connect(transport);
+        return startDevice(transport, batch);
+    }
+
+    /* Connect a BenchmarkDevice to a keeper over UsbSerialTransport, which gathers frames into
+     * one write, and wait for it to sync
+     * param keeper The keeper
+     * param batch  Offer batch messages
+     * returns      The device, already receiving
+     * throws Exception if it doesn't sync
+     */
+    static BenchmarkDevice connectUsbDevice(LogKeeper keeper, boolean batch) throws Exception{
+        LoopbackSerialDriver driver = new LoopbackSerialDriver(65536);
+        keeper.connect(new UsbSerialTransport(new UsbManager(), driver));
+        return startDevice(driver.getLink(), batch);
+    }
+
+    // Start a BenchmarkDevice on the peer side of a link and wait for it to sync
+    private static BenchmarkDevice startDevice(LoopbackTransport transport, boolean batch) throws Exception{
+        BenchmarkDevice device = new BenchmarkDevice(transport, 20, batch);
+        device.start();
+        if (!device.awaitSync(5000)) throw new IllegalStateException("Device didn't sync");
+        return device;
+    }
+}
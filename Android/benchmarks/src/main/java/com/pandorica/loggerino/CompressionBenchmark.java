@@ -0,0 +1,126 @@
+package com.pandorica.loggerino;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/* Compression of expanded messages on realistic log corpora
+ *
+ * Each corpus is a fixed, seeded set of 'tag-short: long' payloads as an expanded frame carries
+ * them. Compression follows the session's rule: payloads under 48 bytes are left alone, and the
+ * rest are only sent compressed when that saves more than the 2-byte length prefix. The time is
+ * per message; the sizes and the wire time at 115200 baud are printed once per trial, after every
+ * payload is checked to decompress to the original.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int MESSAGES = 2000;
+    private static final int MIN_BYTES = 48;        // As the session's COMPRESS_MIN_BYTES
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"json", "stack", "http", "short"})
+    public String corpus;
+
+    private final LzCodec mLz = new LzCodec();
+    private final byte[] mCompressed = new byte[1 << 16];
+    private byte[][] mPayloads;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        String[] messages = corpus(corpus, MESSAGES);
+        mPayloads = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++) mPayloads[i] = messages[i].getBytes(UTF8);
+        report();
+    }
+
+    @Benchmark
+    public int compress(){
+        byte[] payload = mPayloads[mNext++ % MESSAGES];
+        if (payload.length < MIN_BYTES) return -1;
+        return mLz.compress(payload, 0, payload.length, mCompressed, 0, payload.length - 3);
+    }
+
+    // Print the average size before and after, and check every payload comes back intact
+    private void report(){
+        byte[] back = new byte[1 << 16];
+        long raw = 0, sent = 0;
+        int compressed = 0;
+        for (byte[] payload : mPayloads) {
+            raw += payload.length;
+            int n = payload.length < MIN_BYTES ? -1 : mLz.compress(payload, 0, payload.length, mCompressed, 0, payload.length - 3);
+            if (n < 0) {
+                sent += payload.length;
+                continue;
+            }
+            int m = LzCodec.decompress(mCompressed, 0, n, back, 0);
+            if (m != payload.length || !Arrays.equals(Arrays.copyOf(back, m), payload)) {
+                throw new IllegalStateException("Corpus " + corpus + " didn't decompress");
+            }
+            sent += n + 2;
+            compressed++;
+        }
+        System.out.printf("%n%s: %d B -> %d B (%.0f%%), %d of %d compressed, %.1f -> %.1f ms a message at 115200 baud%n",
+                corpus, raw / MESSAGES, sent / MESSAGES, 100.0 * sent / raw, compressed, MESSAGES,
+                raw * 10 / 115.2 / MESSAGES, sent * 10 / 115.2 / MESSAGES);
+    }
+
+    /* Build a corpus of expanded payloads
+     * param kind   "json" sensor dumps, "stack" traces, "http" request lines with a UUID, or
+     *              anything else for short lines
+     * param count  Number of payloads
+     * returns      The payloads, the same every time
+     */
+    static String[] corpus(String kind, int count){
+        Random random = new Random(7);
+        String[] out = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            switch (kind) {
+                case "json":
+                    sb.append("Sensor-reading: {\"event\":\"sensor\",\"seq\":").append(i).append(",\"readings\":[");
+                    for (int k = 0; k < 20; k++) {
+                        sb.append(k > 0 ? "," : "").append("{\"ch\":").append(k).append(",\"v\":").append(random.nextInt(4096)).append(",\"ok\":true}");
+                    }
+                    sb.append("]}");
+                    break;
+                case "stack":
+                    sb.append("Net-IOException: java.io.IOException: timeout ").append(i).append('\n');
+                    for (int k = 0; k < 12; k++) {
+                        sb.append("\tat com.example.app.net.Client").append(random.nextInt(5)).append(".call(Client.java:")
+                                .append(100 + random.nextInt(400)).append(")\n");
+                    }
+                    break;
+                case "http":
+                    sb.append("Http-GET /api/v1/items: 200 OK headers={Content-Type: application/json, Cache-Control: no-cache, X-Request-Id: ")
+                            .append(new UUID(random.nextLong(), random.nextLong())).append("} took ").append(random.nextInt(900)).append("ms");
+                    break;
+                default:
+                    sb.append("Main-count: ").append(random.nextInt(100000)).append(" value=").append(random.nextDouble());
+            }
+            out[i] = sb.toString();
+        }
+        return out;
+    }
+}
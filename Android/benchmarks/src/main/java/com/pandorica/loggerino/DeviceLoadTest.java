@@ -0,0 +1,350 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* End-to-end load test: Logger calls through a real session to a DeviceSimulator
+ *
+ * Each scenario links a fresh LogKeeper to a simulated device at some baud rate, latency, error
+ * rate and protocol version, then runs two phases. The latency phase logs at a steady rate the
+ * link can easily carry and times each entry from the Logger call to the device ACKing it. The
+ * saturation phase keeps a few dozen entries outstanding, under the overflow limit so nothing is
+ * dropped, and measures how many a second get through; its latencies are mostly time spent
+ * queued behind the others. Entries older than the newest one delivered aren't outstanding, so
+ * entries lost on a noisy line don't hold the phase up. A page, expand and resume from the
+ * device follow, to check commands still work after the load; the last entry has a long
+ * message, which has to come back whole even when the link cuts it into ranges.
+ *
+ * Runs on any desktop JVM with
+ *     ./gradlew :benchmarks:loadTest
+ * and exits non-zero if a scenario fails to sync, doesn't answer a command, loses an entry
+ * without reporting it (in a skip marker the device shows, or as undeliverable), or breaks its
+ * bounds on the entries lost in a phase and the latency phase's p99. Clean lines may lose none.
+ */
+public class DeviceLoadTest {
+
+    private static final int WIDTH = 60;            // Display width the device reports
+    private static final int HEIGHT = 4;            // Lines on the display
+    private static final int RATE = 100;            // Entries a second in the latency phase
+    private static final int IN_FLIGHT = 48;        // Entries outstanding in the saturation phase
+    private static final int CAPACITY = 1 << 21;    // Most entries timed per scenario
+    private static final long SETTLE_MS = 5000;     // Longest wait for stragglers after a phase
+    private static final long STALL_NS = 1000000000L; // Log another entry when none has been delivered this long
+    private static final long COMMAND_WAIT_MS = 3000;       // Longest wait for a command's answer
+    private static final long NOISY_COMMAND_WAIT_MS = 30000; // The same on a noisy line, resending as it goes
+    private static final int COMMAND_ATTEMPTS = 3;  // Goes at the commands, when resyncs interrupt them
+    private static final int LONG_LENGTH = 2000;    // Characters in the long message expanded at the end
+    private static final String SKIP_MARKER = "...-"; // Start of the line "...-<n> skipped"
+
+    // A link to test over, and what it has to manage
+    private static class Scenario{
+        final String name;
+        final int version;
+        final int baud;
+        final long latency;
+        final double errorRate;
+        final double maxLoss;   // Most of a phase's entries that may be lost, reported or not
+        final long maxP99;      // Longest p99 latency in the latency phase, in ms
+
+        Scenario(String name, int version, int baud, long latency, double errorRate, double maxLoss, long maxP99){
+            this.name = name;
+            this.version = version;
+            this.baud = baud;
+            this.latency = latency;
+            this.errorRate = errorRate;
+            this.maxLoss = maxLoss;
+            this.maxP99 = maxP99;
+        }
+    }
+
+    private static final Scenario[] SCENARIOS = {
+            new Scenario("v3 115200 baud, 2 ms", 3, 115200, 2, 0, 0, 50),
+            new Scenario("v3 1M baud, 1 ms", 3, 1000000, 1, 0, 0, 50),
+            new Scenario("v3 115200 baud, 2 ms, 1e-3 errors", 3, 115200, 2, 1e-3, 0.15, 2500),
+            new Scenario("v3 115200 baud, 2 ms, 5e-3 errors", 3, 115200, 2, 5e-3, 0.6, 10000),
+            new Scenario("v2 115200 baud, 2 ms", 2, 115200, 2, 0, 0, 50),
+            new Scenario("v1 115200 baud, 2 ms", 1, 115200, 2, 0, 0, 50),
+    };
+
+    private final long[] mSent = new long[CAPACITY];    // System.nanoTime() of each Logger call
+    private final long[] mAcked = new long[CAPACITY];   // Nanoseconds to the device ACK, 0 until then
+    private final AtomicLong mDelivered = new AtomicLong();
+    private volatile int mNewest = -1;                  // Highest entry number delivered
+    private final AtomicLong mSkipped = new AtomicLong();   // Entries skip markers told the device about
+    private final Map<Integer, Integer> mMarkers = new HashMap<>(); // Entries counted from each skip marker, by ID
+    private long mSkippedSeen = 0;                      // Skipped entries already accounted for
+    private long mUndeliverable = 0;                    // Undeliverable entries already accounted for
+    private long mCommandWait = COMMAND_WAIT_MS;
+    private final String mLongText = longText();
+
+    public static void main(String[] args) throws Exception{
+        long seconds = Long.getLong("loadtest.seconds", 5);
+        boolean passed = true;
+        for (Scenario scenario : SCENARIOS) {
+            if (args.length > 0 && !scenario.name.startsWith(args[0])) continue;
+            passed &= new DeviceLoadTest().run(scenario, seconds);
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /* Run one scenario and print its results
+     * param scenario   The link
+     * param seconds    Length of each phase
+     * returns          False if it failed
+     */
+    private boolean run(Scenario scenario, long seconds) throws Exception{
+        System.out.println("== " + scenario.name);
+        Context context = BenchmarkSupport.newContext();
+        Logger logger = Logger.getLogger(context);
+        LogKeeper keeper = LogKeeper.getInstance(context);
+        LoopbackTransport transport = new LoopbackTransport(65536);
+        keeper.connect(transport);
+
+        DeviceSimulator device = new DeviceSimulator(transport, WIDTH, HEIGHT);
+        device.setProtocol(scenario.version, 8, (byte) (DeviceSimulator.CAP_BATCH | DeviceSimulator.CAP_COMPRESS | DeviceSimulator.CAP_RANGE));
+        device.setBaudRate(scenario.baud);
+        device.setLatency(scenario.latency);
+        device.setErrorRate(scenario.errorRate, scenario.errorRate, 42);
+        device.setEntryListener(new DeviceSimulator.EntryListener() {
+            @Override
+            public void onEntry(int id, char type, String text){
+                delivered(id, text);
+            }
+        });
+        device.start();
+
+        if (scenario.errorRate > 0) mCommandWait = NOISY_COMMAND_WAIT_MS;
+        boolean passed = true;
+        try {
+            if (!device.awaitSync(10000)) {
+                System.out.println("  no sync");
+                return false;
+            }
+
+            // Latency phase
+            int count = (int) Math.min(CAPACITY, RATE * seconds);
+            long period = 1000000000L / RATE;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                long due = start + i * period;
+                while (System.nanoTime() < due) LockSupport.parkNanos(due - System.nanoTime());
+                log(logger, i);
+            }
+            awaitDelivery(count);
+            if (!report("latency", 0, count, start, keeper, scenario.maxLoss, scenario.maxP99)) passed = false;
+
+            // Saturation phase
+            long end = System.nanoTime() + seconds * 1000000000L;
+            int first = count;
+            start = System.nanoTime();
+            int newest = mNewest;
+            long progress = start;
+            while (System.nanoTime() < end && count < CAPACITY) {
+                long now = System.nanoTime();
+                if (mNewest != newest) {
+                    newest = mNewest;
+                    progress = now;
+                }
+                // Everything up to the newest delivered got there or was lost. If the newest
+                // logged were lost too, another one gets things moving again
+                if (count - 1 - newest < IN_FLIGHT) {
+                    log(logger, count++);
+                } else if (now - progress > STALL_NS) {
+                    log(logger, count++);
+                    progress = now;
+                } else {
+                    Thread.yield();
+                }
+            }
+            // The entry expanded below
+            mSent[count] = System.nanoTime();
+            logger.i("L", "#" + count++, mLongText);
+            awaitDelivery(count);
+            if (!report("saturation", first, count, start, keeper, scenario.maxLoss, Long.MAX_VALUE)) passed = false;
+
+            if (!checkCommands(device, keeper, count - 1)) {
+                System.out.println("  commands: no answer");
+                passed = false;
+            }
+            // By now even the last entries lost have been reported, in the frames the commands brought
+            long unreported = count - mDelivered.get() - mSkipped.get() - keeper.getUndeliverableCount();
+            if (unreported > 0) {
+                System.out.println("  " + unreported + " entries lost without being reported");
+                passed = false;
+            }
+
+            System.out.println("  device: " + device.getFrames() + " frames, " + device.getDuplicates() + " duplicates, "
+                    + device.getBadFrames() + " bad, " + device.getNaks() + " NAKs, " + device.getCancels() + " CANs, "
+                    + device.getSyncs() + " syncs, " + device.getCommandsSent() + " commands");
+            System.out.println("  android: " + keeper.getFailedFrameCount() + " failed frames, " + keeper.getUndeliverableCount()
+                    + " undeliverable, " + keeper.getBreakerTripCount() + " breaker trips, " + keeper.getDroppedCount() + " dropped");
+        } finally {
+            logger.destroy();
+            device.interrupt();
+            BenchmarkSupport.delete(context.getFilesDir());
+        }
+        return passed;
+    }
+
+    private void log(Logger logger, int i){
+        mSent[i] = System.nanoTime();
+        logger.i("L", "#" + i, "");
+    }
+
+    // Note when an entry reached the device, the first time only; the number is after the '#'
+    private void delivered(int id, String text){
+        long now = System.nanoTime();
+        if (text.startsWith(SKIP_MARKER)) {
+            // Sent again after a resync, maybe with other markers' counts merged in
+            int skipped = Integer.parseInt(text.substring(SKIP_MARKER.length(), text.indexOf(' ')));
+            Integer counted = mMarkers.get(id);
+            if (counted != null && counted >= skipped) return;
+            mMarkers.put(id, skipped);
+            mSkipped.addAndGet(skipped - (counted == null ? 0 : counted));
+            return;
+        }
+        int hash = text.indexOf('#');
+        if (hash < 0) return;
+        int i = 0;
+        for (int pos = hash + 1; pos < text.length() && Character.isDigit(text.charAt(pos)); pos++) {
+            i = i * 10 + text.charAt(pos) - '0';
+        }
+        if (i >= CAPACITY || mAcked[i] != 0) return;
+        mAcked[i] = Math.max(1, now - mSent[i]);
+        if (i > mNewest) mNewest = i;
+        mDelivered.incrementAndGet();
+    }
+
+    // Wait for entries still on their way, until they stop coming
+    private void awaitDelivery(int count) throws InterruptedException{
+        long last = mDelivered.get();
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        while (mDelivered.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            if (mDelivered.get() != last) {
+                last = mDelivered.get();
+                deadline = System.currentTimeMillis() + SETTLE_MS;
+            }
+        }
+    }
+
+    /* Print what a phase delivered, and check it against the scenario's bounds
+     * param phase      Its name
+     * param from       First entry logged in it
+     * param to         One past the last
+     * param start      System.nanoTime() it started at
+     * param keeper     The session
+     * param maxLoss    Most of the entries that may be lost, as a fraction
+     * param maxP99     Longest p99 latency allowed, in ms
+     * returns          False if it broke a bound
+     */
+    private boolean report(String phase, int from, int to, long start, LogKeeper keeper, double maxLoss, long maxP99){
+        long[] latencies = new long[to - from];
+        int n = 0;
+        long lastAck = start;
+        for (int i = from; i < to; i++) {
+            if (mAcked[i] == 0) continue;
+            latencies[n++] = mAcked[i];
+            lastAck = Math.max(lastAck, mSent[i] + mAcked[i]);
+        }
+        Arrays.sort(latencies, 0, n);
+        double elapsed = (lastAck - start) / 1e9;
+
+        System.out.printf("  %-10s logged %7d, delivered %7d (%.0f/s), latency p50 %s p99 %s p99.9 %s max %s%n",
+                phase, to - from, n, elapsed > 0 ? n / elapsed : 0.0,
+                millis(latencies, n, 0.5), millis(latencies, n, 0.99), millis(latencies, n, 0.999), millis(latencies, n, 1));
+
+        // No more lost than the link allows. Whether each was reported is checked at the end, as
+        // one lost near the end of a phase may only be reported in the next
+        int lost = to - from - n;
+        long skipped = mSkipped.get() - mSkippedSeen;
+        long undeliverable = keeper.getUndeliverableCount() - mUndeliverable;
+        mSkippedSeen += skipped;
+        mUndeliverable += undeliverable;
+        if (lost > 0 || skipped + undeliverable > 0) {
+            System.out.printf("  %-10s %d skipped, %d undeliverable%n", "", skipped, undeliverable);
+        }
+        boolean passed = true;
+        if (lost > maxLoss * (to - from)) {
+            System.out.printf("  %-10s lost %.1f%%, over the %.1f%% allowed%n", "", 100.0 * lost / (to - from), 100 * maxLoss);
+            passed = false;
+        }
+        if (n > 0 && percentile(latencies, n, 0.99) / 1000000L > maxP99) {
+            System.out.printf("  %-10s p99 over the %dms allowed%n", "", maxP99);
+            passed = false;
+        }
+        return passed;
+    }
+
+    // Returns a percentile of sorted latencies, in ms
+    private static String millis(long[] sorted, int n, double q){
+        if (n == 0) return "-";
+        return String.format("%.2fms", percentile(sorted, n, q) / 1e6);
+    }
+
+    // Returns a percentile of n sorted latencies, n > 0
+    private static long percentile(long[] sorted, int n, double q){
+        return sorted[Math.min(n - 1, Math.max(0, (int) Math.ceil(q * n) - 1))];
+    }
+
+    /* Page back to the newest entry, expand it, then go back to scrolling. A resync on the way
+     * puts the device back to scrolling, so the commands are sent again then
+     * param keeper The session
+     * param newest Number of the last entry logged, the one with the long message
+     * returns      False if the device got no answer, or not all of the long message
+     */
+    private boolean checkCommands(DeviceSimulator device, LogKeeper keeper, int newest) throws InterruptedException{
+        long seq = keeper.newestSequence();
+        if (seq < 0) return false;
+        int id = (int) (seq & 0xffff); // IDs are the low bits of the sequence, delivered or not
+        String line = "L-#" + newest;
+        for (int attempt = 0; attempt < COMMAND_ATTEMPTS; attempt++) {
+            long syncs = device.getSyncs();
+            device.page((id - HEIGHT + 1) & 0xffff, HEIGHT);
+            boolean answered = awaitScreen(device, line);
+            if (answered) {
+                device.expand(id);
+                answered = awaitScreen(device, line + ": " + mLongText);
+            }
+            if (answered) {
+                device.resumeScroll();
+                answered = awaitScreen(device, null);
+            }
+            if (answered) return true;
+            if (device.getSyncs() == syncs) return false;
+        }
+        return false;
+    }
+
+    // Returns a long message of digits and spaces, not very compressible, the same every run
+    private static String longText(){
+        Random random = new Random(3);
+        StringBuilder sb = new StringBuilder(LONG_LENGTH);
+        while (sb.length() < LONG_LENGTH) sb.append(random.nextInt(1000000)).append(' ');
+        return sb.substring(0, LONG_LENGTH);
+    }
+
+    /* Wait for a line to appear on the screen and the device's commands to be ACKed
+     * param device     The device
+     * param text       Start of the line, or null for any screen
+     * returns          True if it did within mCommandWait
+     */
+    private boolean awaitScreen(DeviceSimulator device, String text) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + mCommandWait;
+        while (System.currentTimeMillis() < deadline) {
+            if (!device.hasPendingCommands()) {
+                if (text == null) return true;
+                for (String line : device.getScreen()) if (line.startsWith(text)) return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
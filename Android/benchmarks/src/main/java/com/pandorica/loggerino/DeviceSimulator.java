@@ -0,0 +1,642 @@
+package com.pandorica.loggerino;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Stand-in for Logger.ino: the device side of protocol.txt, over a LoopbackTransport
+ *
+ * Syncs (starting it with ENQ, or answering a SYN), negotiates up to the version, window and
+ * capabilities it is given, then takes frames the way the firmware does: ACK, NAK or CAN each,
+ * with the sequence and CRC checks of v2 and v3, NAKing every frame that arrives after a
+ * missing one rather than only the first. 'P', 'E' and 'R' commands can be sent from
+ * any thread and go out between frames; the device asks for the rest of a ranged expanded
+ * message with 'X' itself. What would be on the screen is kept, and every entry
+ * is passed to an EntryListener when it is ACKed.
+ *
+ * The link is emulated on the way: bytes arrive no faster than the baud rate allows, replies
+ * reach Android after a latency, and bytes in either direction can be corrupted at random.
+ * Replies travel on a thread of their own, so latency doesn't hold the device up.
+ */
+class DeviceSimulator extends Thread {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte SOH = 0x01, STX = 0x02, ETX = 0x03, EOT = 0x04, ENQ = 0x05, ACK = 0x06;
+    private static final byte NAK = 0x15, SYN = 0x16, ETB = 0x17, CAN = 0x18;
+
+    private static final byte SHORT_TYPE = 0x01;
+    private static final byte EXPANDED_TYPE = 0x02;
+    private static final byte BATCH_TYPE = 0x03;
+    private static final byte COMPRESSED_TYPE = 0x04;
+    private static final byte RANGE_TYPE = 0x05;
+
+    static final byte CAP_BATCH = 0x01;
+    static final byte CAP_COMPRESS = 0x02;
+    static final byte CAP_RANGE = 0x04;
+
+    private static final int BYTE_TIMEOUT_MS = 500;     // Longest wait for the rest of a frame
+    private static final long ENQ_INTERVAL_MS = 1000;   // How often to ask for a sync until one happens
+    private static final long COMMAND_TIMEOUT_MS = 500; // Resend a command not ACKed within this
+    private static final long QUIET_NS = 20 * 1000000L; // Line idle this long before a v1 command
+    private static final int RANGE_REQUEST = 4096;      // Bytes asked for with each 'X'
+
+    // Told about every entry the device takes
+    interface EntryListener{
+
+        /* Called on the device thread as the frame holding the entry is ACKed
+         * param id     16-bit ID of the entry
+         * param type   Its log type code
+         * param text   The text shown for it
+         */
+        void onEntry(int id, char type, String text);
+    }
+
+    // Bytes on their way to Android, due at a given time
+    private static class Reply implements Delayed{
+        final byte[] bytes;
+        final long due;     // System.nanoTime() to deliver at
+
+        Reply(byte[] bytes, long due){
+            this.bytes = bytes;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit){
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other){
+            return Long.compare(due, ((Reply) other).due);
+        }
+    }
+
+    // A command waiting to go out
+    private static class Command{
+        final byte cmd;
+        final byte[] data;
+
+        Command(byte cmd, byte[] data){
+            this.cmd = cmd;
+            this.data = data;
+        }
+    }
+
+    private enum Mode{
+        SCROLL, PAGE, EXPANDED
+    }
+
+    private final LoopbackTransport mTransport;
+    private final int mWidth;
+    private final int mHeight;
+
+    // Settings, fixed once started
+    private int mMaxVersion = 3;
+    private int mMaxWindow = 8;
+    private byte mOfferedCaps = CAP_BATCH | CAP_COMPRESS;
+    private long mByteNs = 0;                   // Time one byte takes on the wire, 0 for no limit
+    private long mLatencyNs = 0;
+    private double mErrorRate = 0;              // Chance each byte from Android is corrupted
+    private double mReplyErrorRate = 0;         // Chance each byte to Android is corrupted
+    private final Random mRandom = new Random(1);
+    private volatile EntryListener mListener;
+
+    // Protocol state, device thread only
+    private int mVersion = 1;
+    private byte mCaps = 0;
+    private volatile boolean mSynced = false;
+    private int mExpected = 0;                  // Next v2 sequence number wanted
+    private Mode mMode = Mode.SCROLL;
+    private volatile Command mPending = null;   // Command sent but not ACKed
+    private long mPendingSent = 0;
+    private long mLastEnq = 0;
+
+    // Input, paced to the baud rate
+    private final byte[] mIn = new byte[4096];
+    private int mInPos = 0;
+    private int mInEnd = 0;
+    private long mRxFree = 0;                   // When the wire from Android is next idle
+    private long mTxFree = 0;                   // When the wire to Android is next idle
+    private long mLastRx = 0;                   // System.nanoTime() the last bytes arrived
+    private boolean mNoise = false;             // Skipping noise since the last frame, until the line is quiet
+    private final byte[] mFrame = new byte[10 + 65535 + 5]; // Largest v3 frame
+
+    private final ConcurrentLinkedQueue<Command> mCommands = new ConcurrentLinkedQueue<>();
+    private final DelayQueue<Reply> mReplies = new DelayQueue<>();
+    private final Thread mWire;
+
+    // What the screen shows
+    private final ArrayDeque<String> mLines = new ArrayDeque<>();
+    private String mExpandedText = null;
+    private int mExpandedBytes = 0;             // Bytes of mExpandedText received in ranges
+
+    // Counters, readable from any thread
+    private final AtomicLong mFrames = new AtomicLong();        // Frames taken
+    private final AtomicLong mEntries = new AtomicLong();       // Entries taken
+    private final AtomicLong mDuplicates = new AtomicLong();    // Frames received again
+    private final AtomicLong mBadFrames = new AtomicLong();     // Frames malformed or failing the CRC
+    private final AtomicLong mNaks = new AtomicLong();          // NAKs sent
+    private final AtomicLong mCancels = new AtomicLong();       // Frames CANed
+    private final AtomicLong mSyncs = new AtomicLong();         // Syncs completed
+    private final AtomicLong mCommandsSent = new AtomicLong();  // Commands sent, resends included
+
+    /* Constructor
+     * param transport  The transport a session was connected with
+     * param width      Display width in characters, reported at sync
+     * param height     Lines on the display
+     */
+    DeviceSimulator(LoopbackTransport transport, int width, int height){
+        super("DeviceSimulator");
+        setDaemon(true);
+        mTransport = transport;
+        mWidth = width;
+        mHeight = height;
+        mWire = new Thread("DeviceSimulator-wire"){
+            @Override
+            public void run(){
+                deliverReplies();
+            }
+        };
+        mWire.setDaemon(true);
+    }
+
+    /* Choose what to offer at sync
+     * param version    Highest protocol version, 1 to 3; 1 answers the old way, without a block
+     * param window     Largest v2 window
+     * param caps       Capability flags, CAP_BATCH, CAP_COMPRESS and CAP_RANGE
+     */
+    void setProtocol(int version, int window, byte caps){
+        mMaxVersion = version;
+        mMaxWindow = window;
+        mOfferedCaps = caps;
+    }
+
+    /* Emulate a serial link: 10 bits on the wire for every byte
+     * param baud   Speed in baud, or 0 for no limit
+     */
+    void setBaudRate(int baud){
+        mByteNs = baud <= 0 ? 0 : 10 * 1000000000L / baud;
+    }
+
+    /* Delay everything the device sends
+     * param ms     Delay in ms
+     */
+    void setLatency(long ms){
+        mLatencyNs = ms * 1000000L;
+    }
+
+    /* Corrupt bytes at random, by flipping one bit
+     * param toDevice   Chance for each byte from Android
+     * param toAndroid  Chance for each byte to Android
+     * param seed       Seed, so a run can be repeated
+     */
+    void setErrorRate(double toDevice, double toAndroid, long seed){
+        mErrorRate = toDevice;
+        mReplyErrorRate = toAndroid;
+        mRandom.setSeed(seed);
+    }
+
+    void setEntryListener(EntryListener listener){
+        mListener = listener;
+    }
+
+    // Ask for a page of entries, as the paging arrows do
+    void page(int id, int count){
+        mCommands.add(new Command((byte) 'P', new byte[]{(byte) id, (byte) (id >>> 8), (byte) count}));
+    }
+
+    // Ask for an entry's expanded message, as tapping it does
+    void expand(int id){
+        mCommands.add(new Command((byte) 'E', new byte[]{(byte) id, (byte) (id >>> 8)}));
+    }
+
+    // Go back to scrolling
+    void resumeScroll(){
+        mCommands.add(new Command((byte) 'R', new byte[]{0}));
+    }
+
+    // Returns the lines on the screen, top first; the expanded message when one is shown
+    synchronized List<String> getScreen(){
+        ArrayList<String> screen = new ArrayList<>();
+        if (mExpandedText != null) screen.add(mExpandedText);
+        else screen.addAll(mLines);
+        return screen;
+    }
+
+    boolean isSynced(){
+        return mSynced;
+    }
+
+    // True while a command is queued or waiting for its ACK
+    boolean hasPendingCommands(){
+        return mPending != null || !mCommands.isEmpty();
+    }
+
+    long getFrames(){
+        return mFrames.get();
+    }
+
+    long getEntries(){
+        return mEntries.get();
+    }
+
+    long getDuplicates(){
+        return mDuplicates.get();
+    }
+
+    long getBadFrames(){
+        return mBadFrames.get();
+    }
+
+    long getNaks(){
+        return mNaks.get();
+    }
+
+    long getCancels(){
+        return mCancels.get();
+    }
+
+    long getSyncs(){
+        return mSyncs.get();
+    }
+
+    long getCommandsSent(){
+        return mCommandsSent.get();
+    }
+
+    /* Wait for the first sync
+     * param timeout    Longest to wait, in ms
+     * returns          True if there was one
+     * throws InterruptedException on interrupt
+     */
+    boolean awaitSync(long timeout) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mSyncs.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        return mSyncs.get() > 0;
+    }
+
+    @Override
+    public void run(){
+        mWire.start();
+        try {
+            while (!interrupted()) step();
+        }catch (InterruptedException | EOFException ex){
+            // Session closed, or the test is over
+        }catch (IOException ex){
+            // Same, from a write
+        }finally {
+            mWire.interrupt();
+        }
+    }
+
+    // Handle whatever comes next: a frame, a reply to a command, a sync, or a command to send
+    private void step() throws IOException, InterruptedException{
+        long now = System.currentTimeMillis();
+        if (!mSynced) {
+            if (now - mLastEnq >= ENQ_INTERVAL_MS) {
+                send(ENQ);
+                mLastEnq = now;
+            }
+        } else {
+            if (mPending != null && now - mPendingSent > COMMAND_TIMEOUT_MS) sendCommand(mPending);
+            if (mPending == null && (mVersion >= 2 || System.nanoTime() - mLastRx > QUIET_NS)) {
+                Command command = mCommands.poll();
+                if (command != null) sendCommand(command);
+            }
+        }
+
+        int b = readByte(50);
+        if (b < 0) {
+            mNoise = false;
+            return;
+        }
+        switch ((byte) b){
+            case SYN:
+                // The firmware flushes its input after noise, so a SYN in the rest of a damaged
+                // frame doesn't start a sync
+                if (!mNoise) answerSync();
+                break;
+            case SOH:
+                mNoise = false;
+                if (mSynced) readFrame();
+                break;
+            case ACK:
+                mPending = null;
+                break;
+            case NAK:
+                if (mPending != null) sendCommand(mPending);
+                break;
+            default:
+                // Line noise, or a frame whose SOH was damaged
+                mNoise = mSynced;
+        }
+    }
+
+    // Answer a SYN with the display width and, unless pretending to be v1, a capability block
+    private void answerSync() throws IOException, InterruptedException{
+        mSynced = false;
+        mPending = null;
+        if (mMaxVersion <= 1) {
+            send(ACK, SOH, (byte) mWidth, EOT);
+            if (readByte(1000) != ACK) return;
+            mVersion = 1;
+            mCaps = 0;
+        } else {
+            send(ACK, SOH, (byte) mWidth, ETB, (byte) 4, (byte) mMaxVersion, (byte) mMaxWindow, mOfferedCaps, (byte) 0, EOT);
+
+            // ACK ETB <length> <version> <window> <caps> <baud> EOT
+            if (readByte(1000) != ACK || readByte(BYTE_TIMEOUT_MS) != ETB) return;
+            int len = readByte(BYTE_TIMEOUT_MS);
+            if (len < 3) return;
+            byte[] block = new byte[len];
+            for (int i = 0; i < len; i++) block[i] = (byte) readByte(BYTE_TIMEOUT_MS);
+            if (readByte(BYTE_TIMEOUT_MS) != EOT) return;
+            mVersion = block[0];
+            mCaps = (byte) (block[2] & mOfferedCaps);
+        }
+
+        mExpected = 0;
+        setMode(Mode.SCROLL);
+        mSynced = true;
+        mSyncs.incrementAndGet();
+    }
+
+    // Read a frame after its SOH and answer it
+    private void readFrame() throws IOException, InterruptedException{
+        boolean windowed = mVersion >= 2;
+        int headerLength = windowed ? 10 : 9;
+        byte[] frame = mFrame;
+        frame[0] = SOH;
+        int pos = 1;
+        try {
+            while (pos < headerLength) frame[pos++] = (byte) readByteOrFail();
+            if (frame[headerLength - 1] != ETB) throw new IOException("No ETB");
+
+            int type = frame[2] & 0xff;
+            int msgType = frame[3];
+            int seq = windowed ? frame[4] & 0xff : 0;
+            int idPos = windowed ? 5 : 4;
+            int id = (frame[idPos] & 0xff) | (frame[idPos + 1] & 0xff) << 8;
+            int len = (frame[idPos + 2] & 0xff) | (frame[idPos + 3] & 0xff) << 8;
+
+            if (!windowed) send(ACK); // v1 ACKs the header, then the rest comes
+            int tail = mVersion >= 3 ? 4 : 2;
+            for (int i = 0; i < len + 1 + tail; i++) frame[pos++] = (byte) readByteOrFail();
+            if (frame[headerLength] != STX || frame[headerLength + 1 + len] != ETX || frame[pos - 1] != EOT) {
+                throw new IOException("Bad framing");
+            }
+            if (mVersion >= 3) {
+                int crc = (frame[pos - 3] & 0xff) | (frame[pos - 2] & 0xff) << 8;
+                if (Crc16.update(Crc16.INITIAL, frame, 0, pos - 3) != crc) throw new IOException("Bad CRC");
+            }
+
+            if (!windowed) {
+                send(ACK);
+                take(type, msgType, id, frame, headerLength + 1, len);
+            } else if (seq == mExpected) {
+                if (wanted(msgType)) {
+                    send(ACK, (byte) seq);
+                    take(type, msgType, id, frame, headerLength + 1, len);
+                } else {
+                    send(CAN, (byte) seq);
+                    mCancels.incrementAndGet();
+                }
+                mExpected = (mExpected + 1) % SendWindow.SEQ_MODULO;
+            } else if (((mExpected - seq + SendWindow.SEQ_MODULO) % SendWindow.SEQ_MODULO) <= SendWindow.MAX_SIZE) {
+                // Already have it, the ACK must have been lost
+                mDuplicates.incrementAndGet();
+                send(ACK, (byte) ((mExpected + SendWindow.SEQ_MODULO - 1) % SendWindow.SEQ_MODULO));
+            } else {
+                // One went missing, ask for it; the ones after it will come again. Every frame
+                // out of order is NAKed, as protocol.txt allows ("it may do so for every such frame")
+                nak();
+            }
+        }catch (IOException ex){
+            if (ex instanceof EOFException) throw ex;
+            mBadFrames.incrementAndGet();
+            if (windowed) nak();
+            else send(NAK);
+        }
+    }
+
+    private void nak() throws IOException{
+        send(NAK, (byte) mExpected);
+        mNaks.incrementAndGet();
+    }
+
+    // Short messages aren't wanted while an expanded one is on the screen
+    private boolean wanted(int msgType){
+        boolean shortMessage = msgType == SHORT_TYPE || msgType == BATCH_TYPE;
+        return !(shortMessage && mMode == Mode.EXPANDED);
+    }
+
+    /* Put a message on the screen
+     * param type       Log type code from the header
+     * param msgType    Message type
+     * param id         Message ID from the header
+     * param buf        Buffer holding the message
+     * param off        Where it starts
+     * param len        Its length
+     */
+    private void take(int type, int msgType, int id, byte[] buf, int off, int len) throws IOException{
+        mFrames.incrementAndGet();
+        switch (msgType){
+            case SHORT_TYPE:
+                showLine(id, (char) type, new String(buf, off, len, UTF8));
+                break;
+            case BATCH_TYPE:
+                int count = buf[off] & 0xff;
+                int pos = off + 1;
+                for (int i = 0; i < count; i++) {
+                    char entryType = (char) (buf[pos] & 0xff);
+                    int entryId = (buf[pos + 1] & 0xff) | (buf[pos + 2] & 0xff) << 8;
+                    int entryLen = buf[pos + 3] & 0xff;
+                    showLine(entryId, entryType, new String(buf, pos + 4, entryLen, UTF8));
+                    pos += 4 + entryLen;
+                }
+                break;
+            case EXPANDED_TYPE:
+                showExpanded(new String(buf, off, len, UTF8));
+                break;
+            case COMPRESSED_TYPE:
+                byte[] text = new byte[(buf[off] & 0xff) | (buf[off + 1] & 0xff) << 8];
+                try {
+                    LzCodec.decompress(buf, off + 2, len - 2, text, 0);
+                }catch (IllegalArgumentException ex){
+                    throw new IOException("Bad compressed message");
+                }
+                showExpanded(new String(text, UTF8));
+                break;
+            case RANGE_TYPE:
+                long total = uint32(buf, off);
+                int offset = (int) uint32(buf, off + 4);
+                if (!showRange(offset, new String(buf, off + 8, len - 8, UTF8), len - 8)) break;
+                int next = offset + len - 8;
+                if ((mCaps & CAP_RANGE) != 0 && len > 8 && next < total) askRange(id, next);
+                break;
+            default:
+                // Unknown message type, ignored as the firmware does
+        }
+    }
+
+    private void showLine(int id, char type, String text){
+        mEntries.incrementAndGet();
+        synchronized (this) {
+            mLines.addLast(text);
+            while (mLines.size() > mHeight) mLines.removeFirst();
+        }
+        EntryListener listener = mListener;
+        if (listener != null) listener.onEntry(id, type, text);
+    }
+
+    private synchronized void showExpanded(String text){
+        mExpandedText = text;
+    }
+
+    /* Show a range of an expanded message if it is the next one. A command resent after its ACK
+     * was lost is answered twice, so a range already shown can come again
+     * param offset Its first byte
+     * param text   Its text, whole characters
+     * param bytes  Its length in bytes
+     * returns      False if it wasn't the next range
+     */
+    private synchronized boolean showRange(int offset, String text, int bytes){
+        if (offset != mExpandedBytes) return false;
+        mExpandedText = offset == 0 ? text : mExpandedText + text;
+        mExpandedBytes += bytes;
+        return true;
+    }
+
+    // Ask for the rest of an expanded message, from the first byte not received
+    private void askRange(int id, int offset){
+        mCommands.add(new Command((byte) 'X', new byte[]{(byte) id, (byte) (id >>> 8), (byte) offset, (byte) (offset >>> 8),
+                (byte) (offset >>> 16), (byte) (offset >>> 24), (byte) RANGE_REQUEST, (byte) (RANGE_REQUEST >>> 8)}));
+    }
+
+    // Little-endian 32-bit value
+    private static long uint32(byte[] buf, int pos){
+        return (buf[pos] & 0xffL) | (buf[pos + 1] & 0xffL) << 8 | (buf[pos + 2] & 0xffL) << 16 | (buf[pos + 3] & 0xffL) << 24;
+    }
+
+    private synchronized void setMode(Mode mode){
+        mMode = mode;
+        mExpandedText = null;
+        mExpandedBytes = 0;
+        if (mode == Mode.PAGE) mLines.clear();
+    }
+
+    /* Send a command; under v2 and up it waits for its ACK in step(), under v1 right here. v1 has
+     * no way to tell a command from a frame crossing it, so v1 commands wait for a quiet line
+     */
+    private void sendCommand(Command command) throws IOException, InterruptedException{
+        mCommandsSent.incrementAndGet();
+        if (command.cmd != 'X') setMode(command.cmd == 'P' ? Mode.PAGE : command.cmd == 'E' ? Mode.EXPANDED : Mode.SCROLL);
+        byte[] header = {SOH, (byte) mVersion, command.cmd, (byte) command.data.length, ETB};
+        int tail = mVersion >= 3 ? 5 : 3; // STX, ETX, EOT and the CRC
+        byte[] body = new byte[command.data.length + tail];
+        body[0] = STX;
+        System.arraycopy(command.data, 0, body, 1, command.data.length);
+        body[command.data.length + 1] = ETX;
+        if (mVersion >= 3) {
+            int crc = Crc16.update(Crc16.update(Crc16.INITIAL, header, 0, header.length), body, 0, command.data.length + 2);
+            body[command.data.length + 2] = (byte) crc;
+            body[command.data.length + 3] = (byte) (crc >>> 8);
+        }
+        body[body.length - 1] = EOT;
+
+        mPending = command;
+        mPendingSent = System.currentTimeMillis();
+        if (mVersion >= 2) {
+            byte[] all = new byte[header.length + body.length];
+            System.arraycopy(header, 0, all, 0, header.length);
+            System.arraycopy(body, 0, all, header.length, body.length);
+            send(all);
+            return;
+        }
+
+        // Left pending when either half isn't ACKed, so step() sends it again
+        send(header);
+        if (awaitAck()) {
+            send(body);
+            if (awaitAck()) mPending = null;
+        }
+    }
+
+    // Skip anything else until an ACK, v1 commands only
+    private boolean awaitAck() throws IOException, InterruptedException{
+        long deadline = System.currentTimeMillis() + COMMAND_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            int b = readByte(BYTE_TIMEOUT_MS);
+            if (b == ACK) return true;
+            if (b == NAK) return false;
+        }
+        return false;
+    }
+
+    private void send(byte... bytes) throws IOException{
+        byte[] out = bytes.clone();
+        for (int i = 0; i < out.length; i++) out[i] = corrupt(out[i], mReplyErrorRate);
+
+        long now = System.nanoTime();
+        mTxFree = Math.max(mTxFree, now) + out.length * mByteNs;
+        mReplies.add(new Reply(out, mTxFree + mLatencyNs));
+    }
+
+    // Deliver replies to Android as they fall due, from the wire thread
+    private void deliverReplies(){
+        try {
+            while (true) {
+                Reply reply = mReplies.take();
+                mTransport.send(reply.bytes, 0, reply.bytes.length);
+            }
+        }catch (InterruptedException ex){
+            // Done
+        }
+    }
+
+    private int readByteOrFail() throws IOException, InterruptedException{
+        int b = readByte(BYTE_TIMEOUT_MS);
+        if (b < 0) throw new IOException("Timed out");
+        return b;
+    }
+
+    /* Read a byte from Android, no sooner than it would have arrived at the baud rate
+     * param timeout    Longest to wait, in ms
+     * returns          The byte, or -1 on timeout
+     * throws EOFException once the transport is closed
+     */
+    private int readByte(long timeout) throws IOException, InterruptedException{
+        if (mInPos == mInEnd) {
+            int n = mTransport.read(mIn, 0, mIn.length, timeout);
+            if (n < 0) throw new EOFException();
+            if (n == 0) return -1;
+
+            long now = System.nanoTime();
+            mRxFree = Math.max(mRxFree, now) + n * mByteNs;
+            while (System.nanoTime() < mRxFree) LockSupport.parkNanos(mRxFree - System.nanoTime());
+            mLastRx = mRxFree;
+            for (int i = 0; i < n; i++) mIn[i] = corrupt(mIn[i], mErrorRate);
+            mInPos = 0;
+            mInEnd = n;
+        }
+        return mIn[mInPos++] & 0xff;
+    }
+
+    // Flip a random bit of b with the given chance
+    private byte corrupt(byte b, double rate){
+        if (rate <= 0 || mRandom.nextDouble() >= rate) return b;
+        return (byte) (b ^ (1 << mRandom.nextInt(8)));
+    }
+}
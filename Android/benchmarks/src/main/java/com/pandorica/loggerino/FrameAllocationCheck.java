@@ -0,0 +1,97 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+
+import java.lang.management.ManagementFactory;
+
+/* Checks that the session allocates nothing per frame once it has warmed up
+ *
+ * Entries are logged in bursts to a BenchmarkDevice, which allocates nothing itself, first to
+ * warm up, then while counting the bytes the session's IO thread allocates with the JVM's
+ * per-thread allocation counter. The warm-up only logs lines that fill the display with 3-byte
+ * characters, so every window slot has carried the largest frame the width allows before
+ * counting starts; the counted entries mix them with plain ASCII. The entries themselves are
+ * allocated on the caller's thread, and their long messages are too short to be moved into the
+ * arena, so what is counted is storing them, encoding their frames, writing them and handling
+ * the ACKs.
+ *
+ * Runs on a HotSpot JVM with
+ *     ./gradlew :benchmarks:allocationCheck
+ * and exits non-zero if the IO thread allocated anything, with and without batching, over a
+ * LoopbackTransport and over UsbSerialTransport, which gathers frames into one write.
+ */
+public class FrameAllocationCheck {
+
+    private static final int BURST = 32;        // Under the default overflow limit, so nothing is dropped
+    private static final int MESSAGES = 4096;
+    private static final String WIDE = "\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac"
+            + "\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac"; // A display line of 3-byte characters
+    private static final int WARMUP = 20000;    // Entries sent before counting
+    private static final int MEASURED = 20000;  // Entries sent while counting
+    private static final long TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws Exception{
+        boolean passed = check(false, false) & check(true, false) & check(false, true) & check(true, true);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /* Measure one configuration and print the result
+     * param batch  Offer batch messages
+     * param usb    Connect over UsbSerialTransport rather than a LoopbackTransport
+     * returns      False if the IO thread allocated
+     */
+    private static boolean check(boolean batch, boolean usb) throws Exception{
+        Context context = BenchmarkSupport.newContext();
+        LogKeeper keeper = LogKeeper.getInstance(context);
+        try {
+            BenchmarkDevice device = usb ? BenchmarkSupport.connectUsbDevice(keeper, batch) : BenchmarkSupport.connectDevice(keeper, batch);
+            String[] wide = BenchmarkSupport.messages(WIDE, MESSAGES);
+            String[] messages = BenchmarkSupport.messages("Alloc", MESSAGES);
+            for (int i = 1; i < MESSAGES; i += 2) messages[i] = wide[i];
+            Thread io = findSession();
+            if (io == null) throw new IllegalStateException("No session thread");
+
+            long expected = device.getEntries();
+            expected = send(keeper, device, wide, expected, WARMUP);
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long before = threads.getThreadAllocatedBytes(io.getId());
+            long frames = device.getFrames();
+            send(keeper, device, messages, expected, MEASURED);
+            long allocated = threads.getThreadAllocatedBytes(io.getId()) - before;
+            frames = device.getFrames() - frames;
+
+            System.out.printf("%s over %s: %d entries in %d frames, %d bytes allocated by the session (%.2f/frame)%n",
+                    batch ? "batched" : "unbatched", usb ? "USB" : "loopback", MEASURED, frames, allocated, frames > 0 ? (double) allocated / frames : 0.0);
+            return allocated == 0;
+        } finally {
+            keeper.destroy();
+            BenchmarkSupport.delete(context.getFilesDir());
+        }
+    }
+
+    /* Log entries in bursts and wait for the device to take each
+     * param expected   Entries the device had before
+     * param count      Entries to send
+     * returns          Entries the device has after
+     */
+    private static long send(LogKeeper keeper, BenchmarkDevice device, String[] messages, long expected, int count){
+        for (int sent = 0; sent < count; sent += BURST) {
+            for (int i = 0; i < BURST; i++) {
+                String message = messages[(sent + i) & (MESSAGES - 1)];
+                keeper.sendLog("Alloc", message, message, LogKeeper.LogType.I);
+            }
+            expected += BURST;
+            if (!device.awaitEntries(expected, TIMEOUT_MS)) throw new IllegalStateException("Device stopped receiving");
+        }
+        return expected;
+    }
+
+    // Returns the session's IO thread, or null if there is none
+    private static Thread findSession(){
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getClass().getName().endsWith("$IOProcessor")) return thread;
+        }
+        return null;
+    }
+}
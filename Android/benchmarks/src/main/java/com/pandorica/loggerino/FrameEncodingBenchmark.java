@@ -0,0 +1,76 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Cost of getting an entry to the device: storing it, encoding its frame and writing it
+ *
+ * The frame encoding is private to the session, so it is measured through a real one: entries
+ * are logged in bursts and each burst waits until a BenchmarkDevice on a LoopbackTransport has
+ * ACKed all of it. The device allocates nothing, so the allocation rate is the keeper's and the
+ * session's alone. The time also includes the hand-offs between the logging thread, the session
+ * and the device, so run it on a machine with a core for each. Results are per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodingBenchmark {
+
+    private static final int BURST = 32;        // Under the default overflow limit, so nothing is dropped
+    private static final int MESSAGES = 4096;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Param({"false", "true"})
+    public boolean batch;
+
+    private Context mContext;
+    private LogKeeper mKeeper;
+    private BenchmarkDevice mDevice;
+    private String[] mMessages;
+    private int mNext = 0;
+    private long mExpected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception{
+        mContext = BenchmarkSupport.newContext();
+        mKeeper = LogKeeper.getInstance(mContext);
+        mDevice = BenchmarkSupport.connectDevice(mKeeper, batch);
+        mMessages = BenchmarkSupport.messages("Frame", MESSAGES);
+        mExpected = mDevice.getEntries();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        mKeeper.destroy();
+        BenchmarkSupport.delete(mContext.getFilesDir());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void sendBurst(){
+        for (int i = 0; i < BURST; i++) {
+            mKeeper.sendLog("Bench", mMessages[mNext++ & (MESSAGES - 1)], BenchmarkSupport.LONG_TEXT, LogKeeper.LogType.I);
+        }
+        mExpected += BURST;
+        if (!mDevice.awaitEntries(mExpected, TIMEOUT_MS)) throw new IllegalStateException("Device stopped receiving");
+    }
+}
@@ -0,0 +1,107 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Latency of Logger calls on the caller's thread, with no device connected
+ *
+ * Sampled, so the results include percentiles as well as the mean. In sync mode a call filters,
+ * builds its entry and queues it to be stored; in async mode it only queues a record for the
+ * forwarder, until the queue fills and callers fall back to doing the work themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+
+    private static final int MESSAGES = 4096;
+    private static final Exception EXCEPTION = new IllegalStateException("Benchmark");
+    private static final Logger.MessageSupplier SUPPLIER = new Logger.MessageSupplier() {
+        @Override
+        public String get(){
+            return "Supplied message";
+        }
+    };
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private Context mContext;
+    private Logger mLogger;
+    private String[] mMessages;
+    private int mNext = 0;
+    private long mValue = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception{
+        mContext = BenchmarkSupport.newContext();
+        mLogger = Logger.getLogger(mContext);
+        mLogger.setAsync(async);
+        mLogger.setMinLevel("Filtered", LogKeeper.LogType.W);
+        mMessages = BenchmarkSupport.messages("Logger", MESSAGES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        mLogger.destroy();
+        BenchmarkSupport.delete(mContext.getFilesDir());
+    }
+
+    private String next(){
+        return mMessages[mNext++ & (MESSAGES - 1)];
+    }
+
+    // Short and long message
+    @Benchmark
+    public void shortAndLong(){
+        mLogger.i("Bench", next(), BenchmarkSupport.LONG_TEXT);
+    }
+
+    // Short message only
+    @Benchmark
+    public void shortOnly(){
+        mLogger.d("Bench", next());
+    }
+
+    // Exception, whose stack trace becomes the long message
+    @Benchmark
+    public void exception(){
+        mLogger.e("Bench", next(), EXCEPTION);
+    }
+
+    // Format string, rendered later
+    @Benchmark
+    public void formatted(){
+        mLogger.logf(LogKeeper.LogType.D, "Bench", "value %d", mValue++);
+    }
+
+    // Message supplied later
+    @Benchmark
+    public void supplied(){
+        mLogger.log(LogKeeper.LogType.I, "Bench", SUPPLIER);
+    }
+
+    // Below the minimum level for its tag, so dropped straight away
+    @Benchmark
+    public void filtered(){
+        mLogger.v("Filtered", next(), BenchmarkSupport.LONG_TEXT);
+    }
+}
@@ -0,0 +1,110 @@
+package com.pandorica.loggerino;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/* A USB serial device in memory, so benchmarks can run a session over UsbSerialTransport
+ *
+ * The port's writes go into a LoopbackTransport whose peer side is the simulated device, and
+ * whatever the device sends is buffered for the serial library stand-in to read(), as a real
+ * port would be. The speed is ignored.
+ */
+class LoopbackSerialDriver implements UsbSerialDriver {
+
+    private final LoopbackTransport mLink;
+    private final Port mPort = new Port();
+
+    /* Constructor
+     * param capacity   Bytes the session may write ahead of the device reading them
+     */
+    LoopbackSerialDriver(int capacity){
+        mLink = new LoopbackTransport(capacity);
+    }
+
+    // Returns the transport the device reads from and sends to, as its peer
+    LoopbackTransport getLink(){
+        return mLink;
+    }
+
+    @Override
+    public UsbDevice getDevice(){
+        return new UsbDevice();
+    }
+
+    @Override
+    public List<UsbSerialPort> getPorts(){
+        return Collections.<UsbSerialPort>singletonList(mPort);
+    }
+
+    // The one port, reading from a ring filled by the device
+    private class Port implements UsbSerialPort, Transport.Listener {
+
+        private final ByteRingBuffer mFromDevice = new ByteRingBuffer(65536);
+        private boolean mClosed = false;
+
+        @Override
+        public void open(UsbDeviceConnection connection){
+            mLink.open(this);
+        }
+
+        @Override
+        public synchronized void close(){
+            mClosed = true;
+            notifyAll();
+            mLink.close();
+        }
+
+        @Override
+        public synchronized int read(byte[] dest, int timeout) throws IOException{
+            long deadline = System.currentTimeMillis() + timeout;
+            while (mFromDevice.available() == 0) {
+                if (mClosed) throw new IOException("Closed");
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return 0;
+                try {
+                    wait(remaining);
+                }catch (InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            return mFromDevice.read(dest, 0, Math.min(dest.length, mFromDevice.available()));
+        }
+
+        @Override
+        public void write(byte[] src, int length, int timeout) throws IOException{
+            if (mLink.write(src, 0, length, timeout) < length) throw new IOException("Device isn't reading");
+        }
+
+        @Override
+        public void setParameters(int baudRate, int dataBits, int stopBits, int parity){
+            // No speed in memory
+        }
+
+        @Override
+        public synchronized boolean purgeHwBuffers(boolean flushReadBuffers, boolean flushWriteBuffers){
+            if (flushReadBuffers) mFromDevice.read(new byte[mFromDevice.available()], 0, mFromDevice.available());
+            return true;
+        }
+
+        // Bytes from the device, on its thread
+        @Override
+        public synchronized void onNewData(byte[] data, int offset, int length){
+            mFromDevice.write(data, offset, length);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onRunError(Exception e){
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* Cost of finding the entries for a 'P' command, against the number of entries logged
+ *
+ * The journal is on, as it would be for paging back after a restart. The in-memory store holds the
+ * newest 16384 entries whatever is logged; up to that every entry is in memory, and beyond it the
+ * older pages come from the journal. Pages start at random, so the larger counts are mostly
+ * journal reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageLookupBenchmark {
+
+    private static final int PAGE = 8;          // Lines on a typical display
+    private static final int PAGE_STARTS = 1024;
+    private static final int FILL_CHUNK = 1024; // Entries logged before letting the journal catch up
+
+    @Param({"1024", "16384", "65536"})
+    public int logged;
+
+    private Context mContext;
+    private LogKeeper mKeeper;
+    private final long[] mPageStarts = new long[PAGE_STARTS];
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception{
+        mContext = BenchmarkSupport.newContext();
+        mKeeper = LogKeeper.getInstance(mContext);
+        mKeeper.enableJournal(mContext.getFilesDir(), 1024 * 1024, 64 * 1024 * 1024);
+
+        String[] messages = BenchmarkSupport.messages("Page", 4096);
+        for (int i = 0; i < logged; i++) {
+            mKeeper.sendLog("Bench", messages[i & 4095], BenchmarkSupport.LONG_TEXT, LogKeeper.LogType.I);
+            if (i % FILL_CHUNK == FILL_CHUNK - 1) Thread.sleep(20);
+        }
+        Thread.sleep(500);
+
+        long oldest = mKeeper.oldestSequence();
+        long newest = mKeeper.newestSequence();
+        for (long seq = oldest; seq <= newest; seq++) {
+            if (mKeeper.lookup(seq) == null) throw new IllegalStateException("Entry " + seq + " is missing");
+        }
+
+        Random random = new Random(42);
+        long span = Math.max(1, newest - oldest - PAGE + 2);
+        for (int i = 0; i < PAGE_STARTS; i++) mPageStarts[i] = oldest + (long) (random.nextDouble() * span);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        mKeeper.destroy();
+        BenchmarkSupport.delete(mContext.getFilesDir());
+    }
+
+    @Benchmark
+    public void lookupPage(Blackhole bh){
+        long start = mPageStarts[mNext++ & (PAGE_STARTS - 1)];
+        for (long seq = start; seq < start + PAGE; seq++) bh.consume(mKeeper.lookup(seq));
+    }
+}
@@ -0,0 +1,92 @@
+package com.pandorica.loggerino;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* LogKeeper.sendLog() throughput with 1, 4 and 16 threads logging at once
+ *
+ * With no device connected a background thread stores the entries; with a device, its session's
+ * thread does. Either way sendLog() only queues and never blocks, so this measures contention on
+ * the ingest queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendLogBenchmark {
+
+    private static final int MESSAGES = 4096;
+    private static final AtomicInteger PRODUCERS = new AtomicInteger();
+
+    @Param({"false", "true"})
+    public boolean device;
+
+    private Context mContext;
+    private LogKeeper mKeeper;
+
+    // Each thread logs its own messages, so threads don't collapse into each other's repeats
+    @State(Scope.Thread)
+    public static class Producer {
+        String[] messages;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            messages = BenchmarkSupport.messages("Producer " + PRODUCERS.incrementAndGet(), MESSAGES);
+        }
+
+        String next(){
+            return messages[next++ & (MESSAGES - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception{
+        mContext = BenchmarkSupport.newContext();
+        mKeeper = LogKeeper.getInstance(mContext);
+        if (device) BenchmarkSupport.connectDevice(mKeeper, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        mKeeper.destroy();
+        BenchmarkSupport.delete(mContext.getFilesDir());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneProducer(Producer producer){
+        mKeeper.sendLog("Bench", producer.next(), BenchmarkSupport.LONG_TEXT, LogKeeper.LogType.I);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fourProducers(Producer producer){
+        mKeeper.sendLog("Bench", producer.next(), BenchmarkSupport.LONG_TEXT, LogKeeper.LogType.I);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void sixteenProducers(Producer producer){
+        mKeeper.sendLog("Bench", producer.next(), BenchmarkSupport.LONG_TEXT, LogKeeper.LogType.I);
+    }
+}
@@ -0,0 +1,81 @@
+package com.pandorica.loggerino;
+
+/* Fixed-size ring of primitive bytes for one writer thread and one reader thread
+ *
+ * Reads and writes copy in at most two System.arraycopy calls. The writer only moves the tail
+ * and the reader only moves the head, so neither needs a lock; the volatile positions order the
+ * array accesses between the two threads.
+ */
+class ByteRingBuffer {
+
+    private final byte[] mBuffer;
+    private final int mMask;            // capacity - 1, capacity is a power of two
+    private volatile long mHead = 0;    // Total bytes ever read, reader only
+    private volatile long mTail = 0;    // Total bytes ever written, writer only
+
+    /* Constructor
+     * param capacity   Minimum number of bytes held, rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity){
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    // Returns number of bytes waiting to be read
+    public int available(){
+        return (int) (mTail - mHead);
+    }
+
+    /* Append bytes. Writer thread only
+     * param src    The bytes to append
+     * param offset Start position in src
+     * param len    Number of bytes to append
+     * returns      Number of bytes appended, less than len if the ring filled up
+     */
+    public int write(byte[] src, int offset, int len){
+        long tail = mTail;
+        int count = Math.min(len, mBuffer.length - (int) (tail - mHead));
+        int pos = (int) (tail & mMask);
+        int first = Math.min(count, mBuffer.length - pos);
+
+        System.arraycopy(src, offset, mBuffer, pos, first);
+        System.arraycopy(src, offset + first, mBuffer, 0, count - first);
+        mTail = tail + count; // publish
+        return count;
+    }
+
+    /* Remove bytes. Reader thread only
+     * param dst    The array to copy into
+     * param offset Start position in dst
+     * param len    Maximum number of bytes to remove
+     * returns      Number of bytes removed
+     */
+    public int read(byte[] dst, int offset, int len){
+        long head = mHead;
+        int count = Math.min(len, (int) (mTail - head));
+        int pos = (int) (head & mMask);
+        int first = Math.min(count, mBuffer.length - pos);
+
+        System.arraycopy(mBuffer, pos, dst, offset, first);
+        System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+        mHead = head + count; // release the space
+        return count;
+    }
+
+    /* Remove a single byte. Reader thread only, check available() first
+     * returns The byte
+     */
+    public byte read(){
+        long head = mHead;
+        byte b = mBuffer[(int) (head & mMask)];
+        mHead = head + 1;
+        return b;
+    }
+
+    // Discard everything written so far. Reader thread only
+    public void clear(){
+        mHead = mTail;
+    }
+}
@@ -0,0 +1,41 @@
+package com.pandorica.loggerino;
+
+/* CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xffff, no reflection), table driven
+ *
+ * The AVR C library's _crc_xmodem_update computes the same thing when started from 0xffff, so
+ * the firmware can check frames without a table of its own.
+ */
+class Crc16 {
+
+    public static final int INITIAL = 0xffff;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private Crc16(){
+    }
+
+    /* Add bytes to a running CRC
+     * param crc    The CRC so far, INITIAL to start
+     * param b      The bytes
+     * param off    Where they start
+     * param len    How many
+     * returns      The new CRC
+     */
+    public static int update(int crc, byte[] b, int off, int len){
+        for (int i = off; i < off + len; i++) crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ b[i]) & 0xff]) & 0xffff;
+        return crc;
+    }
+
+    // Add a single byte to a running CRC
+    public static int update(int crc, byte b){
+        return ((crc << 8) ^ TABLE[((crc >>> 8) ^ b) & 0xff]) & 0xffff;
+    }
+}
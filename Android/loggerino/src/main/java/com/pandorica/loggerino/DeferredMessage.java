@@ -0,0 +1,91 @@
+package com.pandorica.loggerino;
+
+import java.util.IllegalFormatException;
+import java.util.Locale;
+
+/* A log message captured as a format and its arguments, rendered only when something needs the
+ * text and then cached
+ *
+ * Capturing costs one small object; primitive arguments are kept unboxed until rendering. The
+ * text is built on whichever thread first asks for it, normally the IO thread when the entry is
+ * sent or expanded.
+ */
+class DeferredMessage {
+
+    private final String mFormat;
+    private final Object[] mArgs;               // Object arguments, null when primitive
+    private final long mLong0, mLong1;          // Primitive long arguments
+    private final double mDouble;               // Primitive double argument
+    private final int mPrimitives;              // Which primitive arguments are used, see below
+    private final Logger.MessageSupplier mSupplier; // Supplies the whole text instead of a format
+
+    private static final int ONE_LONG = 1;
+    private static final int TWO_LONGS = 2;
+    private static final int ONE_DOUBLE = 3;
+
+    private volatile String mText = null;       // Rendered text, once rendered
+
+    private DeferredMessage(String format, Object[] args, long l0, long l1, double d, int primitives,
+                            Logger.MessageSupplier supplier){
+        mFormat = format;
+        mArgs = args;
+        mLong0 = l0;
+        mLong1 = l1;
+        mDouble = d;
+        mPrimitives = primitives;
+        mSupplier = supplier;
+    }
+
+    public static DeferredMessage of(String format, Object[] args){
+        return new DeferredMessage(format, args, 0, 0, 0, 0, null);
+    }
+
+    public static DeferredMessage of(String format, long arg){
+        return new DeferredMessage(format, null, arg, 0, 0, ONE_LONG, null);
+    }
+
+    public static DeferredMessage of(String format, long arg0, long arg1){
+        return new DeferredMessage(format, null, arg0, arg1, 0, TWO_LONGS, null);
+    }
+
+    public static DeferredMessage of(String format, double arg){
+        return new DeferredMessage(format, null, 0, 0, arg, ONE_DOUBLE, null);
+    }
+
+    public static DeferredMessage of(Logger.MessageSupplier supplier){
+        return new DeferredMessage(null, null, 0, 0, 0, 0, supplier);
+    }
+
+    // Returns the text, rendering it the first time
+    @Override
+    public String toString(){
+        String text = mText;
+        if (text == null) {
+            text = render();
+            mText = text;
+        }
+        return text;
+    }
+
+    // Build the text. A bad format or a throwing supplier is reported in the text, not thrown
+    private String render(){
+        try {
+            if (mSupplier != null) return String.valueOf(mSupplier.get());
+            if (mFormat == null) return "null";
+            switch (mPrimitives){
+                case ONE_LONG:
+                    return String.format(Locale.US, mFormat, mLong0);
+                case TWO_LONGS:
+                    return String.format(Locale.US, mFormat, mLong0, mLong1);
+                case ONE_DOUBLE:
+                    return String.format(Locale.US, mFormat, mDouble);
+                default:
+                    return mArgs == null || mArgs.length == 0 ? mFormat : String.format(Locale.US, mFormat, mArgs);
+            }
+        } catch (IllegalFormatException ex) {
+            return mFormat + " [bad format: " + ex.getMessage() + "]";
+        } catch (RuntimeException ex) {
+            return "[message failed: " + ex + "]";
+        }
+    }
+}
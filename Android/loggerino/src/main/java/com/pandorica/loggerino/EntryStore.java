@@ -0,0 +1,98 @@
+package com.pandorica.loggerino;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Fixed-capacity ring of log entries addressed by sequence number
+ *
+ * Every added entry gets the next monotonic sequence number. Once the ring is full the oldest
+ * entry is evicted to make room. The device only knows 16-bit IDs (the low bits of the sequence
+ * number), so toSequence() maps an ID back onto the window of sequence numbers that are stored.
+ *
+ * One thread adds at a time, any thread may read. A read that races an eviction returns null
+ * rather than the entry that replaced it.
+ */
+class EntryStore<T> {
+
+    public static final int ID_MASK = 0xffff;   // Protocol IDs are 16-bit
+    public static final long NONE = -1;         // Returned when a sequence number can't be resolved
+
+    private final int mMask;                    // capacity - 1, capacity is a power of two
+    private final AtomicReferenceArray<T> mSlots;
+    private volatile long mNext = 0;            // Sequence number the next add will get
+
+    /* Constructor
+     * param capacity   Minimum number of entries kept, rounded up to a power of two. At most 32768
+     *                  so an ID is never ambiguous between an old entry and a new one
+     */
+    public EntryStore(int capacity){
+        if (capacity > (ID_MASK + 1) / 2) throw new IllegalArgumentException("capacity too large for 16-bit IDs");
+        int size = 2;
+        while (size < capacity) size <<= 1;
+        mMask = size - 1;
+        mSlots = new AtomicReferenceArray<>(size);
+    }
+
+    /* Add an entry, evicting the oldest if full. Writer thread only
+     * param entry  The entry to add
+     * returns      The sequence number assigned to the entry
+     */
+    public long add(T entry){
+        long seq = mNext;
+        mSlots.set((int) (seq & mMask), entry);
+        mNext = seq + 1; // publish
+        return seq;
+    }
+
+    /* Carry on numbering from a later sequence number, such as where a journal left off. Everything
+     * stored is dropped. Writer thread only
+     * param seq    Sequence number the next add will get; ignored if not ahead of the current one
+     */
+    public void restartAt(long seq){
+        if (seq <= mNext) return;
+        for (int i = 0; i <= mMask; i++) mSlots.set(i, null);
+        mNext = seq; // publish
+    }
+
+    /* Get an entry by sequence number
+     * param seq    The sequence number
+     * returns      The entry, or null if it was evicted or hasn't been added
+     */
+    public T get(long seq){
+        if (seq < oldestSequence() || seq >= mNext) return null;
+        T entry = mSlots.get((int) (seq & mMask));
+
+        // The slot may have been reused while we read it
+        return seq >= oldestSequence() ? entry : null;
+    }
+
+    /* Resolve a 16-bit protocol ID to the sequence number it refers to. The newest entry with
+     * those low bits wins
+     * param id     The protocol ID
+     * returns      The sequence number, which may already be evicted (below oldestSequence()), or
+     *              NONE if the ID is ahead of the newest entry
+     */
+    public long toSequence(int id){
+        long newest = mNext - 1;
+        if (newest < 0) return NONE;
+        int behind = ((int) newest - id) & ID_MASK;
+        if (behind > ID_MASK / 2) return NONE; // ID is in the future
+        return newest - behind;
+    }
+
+    /* Returns the oldest sequence number that can still be read. One slot is kept back so a reader
+     * can tell when the writer is about to reuse the slot it is reading
+     */
+    public long oldestSequence(){
+        return Math.max(0, mNext - mMask);
+    }
+
+    // Returns the sequence number of the newest entry, or NONE if empty
+    public long newestSequence(){
+        return mNext > 0 ? mNext - 1 : NONE;
+    }
+
+    // Returns true if nothing was ever added
+    public boolean isEmpty(){
+        return mNext == 0;
+    }
+}
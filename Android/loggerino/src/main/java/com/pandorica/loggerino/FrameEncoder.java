@@ -0,0 +1,136 @@
+package com.pandorica.loggerino;
+
+/* Reusable buffer that frames are encoded into before being written
+ *
+ * Text is encoded to UTF-8 straight from the source Strings, so building a frame allocates
+ * nothing once the buffer has grown to the largest frame seen. Not thread safe; each IOProcessor
+ * owns one.
+ */
+class FrameEncoder {
+
+    private byte[] mBuffer;
+    private int mPosition = 0;
+
+    /* Constructor
+     * param capacity   Initial size of the buffer, it grows as needed
+     */
+    public FrameEncoder(int capacity){
+        mBuffer = new byte[capacity];
+    }
+
+    // Start a new frame
+    public void reset(){
+        mPosition = 0;
+    }
+
+    // Returns the number of bytes encoded so far
+    public int position(){
+        return mPosition;
+    }
+
+    /* Discard everything after a position, e.g. to undo part of a frame
+     * param position   The new end of the frame, no greater than position()
+     */
+    public void truncate(int position){
+        mPosition = position;
+    }
+
+    /* Grow the buffer up front, so frames up to a size never make it grow
+     * param capacity   Bytes it must hold
+     */
+    public void reserve(int capacity){
+        ensure(capacity - mPosition);
+    }
+
+    // Returns the backing buffer, valid from 0 to position()
+    public byte[] buffer(){
+        return mBuffer;
+    }
+
+    // Append a single byte
+    public void put(byte b){
+        ensure(1);
+        mBuffer[mPosition++] = b;
+    }
+
+    // Append bytes from an array
+    public void put(byte[] src, int off, int len){
+        ensure(len);
+        System.arraycopy(src, off, mBuffer, mPosition, len);
+        mPosition += len;
+    }
+
+    // Append a 16-bit integer, low-order byte first
+    public void putUInt16(int value){
+        ensure(2);
+        setUInt16(mPosition, value);
+        mPosition += 2;
+    }
+
+    // Append a 32-bit integer, low-order byte first
+    public void putUInt32(int value){
+        putUInt16(value & 0xffff);
+        putUInt16(value >>> 16);
+    }
+
+    // Overwrite a byte already encoded
+    public void setByte(int position, byte b){
+        mBuffer[position] = b;
+    }
+
+    // Overwrite a 16-bit integer already encoded, low-order byte first
+    public void setUInt16(int position, int value){
+        mBuffer[position] = (byte) (value & 0xff);
+        mBuffer[position + 1] = (byte) ((value >>> 8) & 0xff);
+    }
+
+    /* Append text as UTF-8, stopping after a number of characters. A surrogate pair is never split
+     * param text       The text to append
+     * param maxChars   Most UTF-16 characters to take from text
+     * returns          Number of characters taken
+     */
+    public int putUtf8(CharSequence text, int maxChars){
+        int end = Math.min(text.length(), Math.max(0, maxChars));
+        if (end > 0 && end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+        ensure(end * 3);
+
+        byte[] buf = mBuffer;
+        int pos = mPosition;
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buf[pos++] = '?'; // unpaired surrogate
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        mPosition = pos;
+        return end;
+    }
+
+    // Append all of a piece of text as UTF-8
+    public void putUtf8(CharSequence text){
+        putUtf8(text, text.length());
+    }
+
+    // Grow the buffer so extra more bytes fit
+    private void ensure(int extra){
+        if (mPosition + extra <= mBuffer.length) return;
+        byte[] bigger = new byte[Math.max(mBuffer.length * 2, mPosition + extra)];
+        System.arraycopy(mBuffer, 0, bigger, 0, mPosition);
+        mBuffer = bigger;
+    }
+}
@@ -0,0 +1,447 @@
+package com.pandorica.loggerino;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Append-only journal of log entries in memory-mapped segment files
+ *
+ * Entries are queued without blocking and written by a flusher thread. Each segment file is
+ * named after the first sequence number in it and holds records back to back:
+ *
+ *   <length 32-bit> <sequence 64-bit> <time ms 64-bit> <type 8-bit> <tag length 16-bit> <tag>
+ *   <short length 16-bit> <short message> <long length 32-bit> <long message> <repeats 32-bit>
+ *
+ * Integers are little-endian, text is UTF-8, and a length of all ones means null. Messages are
+ * kept as logged; the repeat count is a field of its own, and when the short message is the long
+ * one, or the start of it, the top bit of the type is set and the short message is left out.
+ * The repeat count is the entry's when it is written, and is patched in place by repeated() once
+ * no more repeats can be collapsed into it. Records from before the repeat count end after the
+ * long message. The length is written last,
+ * so a record cut off by a crash reads as the end of the segment, and whatever is past the end
+ * is zeroed when the journal is opened, so it can't be read as a record later. Every
+ * INDEX_EVERY-th record of a segment goes into a sparse in-memory index, rebuilt by scanning
+ * the segments when the journal is opened. The oldest segments are deleted once the total size
+ * goes over the limit.
+ */
+class Journal {
+
+    // An entry the journal can persist, its messages as logged
+    interface Entry{
+        long getSequence();
+        long getTimeMillis();
+        LogKeeper.LogType getType();
+        String getTag();
+        boolean isShortInLong();    // True if the short message is the long one, or the start of it
+        String getLoggedShortMsg(); // Not asked for if isShortInLong()
+        String getLoggedLongMsg();  // Not asked for if takeLongUtf8() had it
+        byte[] takeLongUtf8();      // The long message already in UTF-8, or null; asked once
+        int getRepeats();
+    }
+
+    // An entry read back from the journal
+    static class Record{
+        long seq;
+        long time;
+        LogKeeper.LogType type;
+        String tag;
+        String shortMsg;
+        String longMsg;
+        int repeats = 1;
+    }
+
+    private static final String SUFFIX = ".seg";
+    private static final int INDEX_EVERY = 32;      // Records between sparse index points
+    private static final int QUEUE_CAPACITY = 4096; // Entries waiting for the flusher before they are dropped
+    private static final int NULL_16 = 0xffff;
+    private static final int NULL_32 = -1;
+    private static final int SHORT_IN_LONG = 0x80;  // Type flag: the short message is the long one
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final LogKeeper.LogType[] TYPES = LogKeeper.LogType.values();
+
+    // One segment file, mapped whole
+    private static class Segment{
+        final File file;
+        final long base;                // Sequence number the file is named after
+        final MappedByteBuffer map;
+        int end = 0;                    // Bytes of records written
+        long last = -1;                 // Sequence number of the last record
+        int records = 0;
+        long[] indexSeq = new long[16]; // Sparse index: sequence number...
+        int[] indexPos = new int[16];   // ...and where its record starts
+        int indexCount = 0;
+
+        Segment(File file, long base, MappedByteBuffer map){
+            this.file = file;
+            this.base = base;
+            this.map = map;
+            map.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Note a record that was just written or found
+        void added(long seq, int pos){
+            if (records++ % INDEX_EVERY == 0) {
+                if (indexCount == indexSeq.length) {
+                    indexSeq = Arrays.copyOf(indexSeq, indexCount * 2);
+                    indexPos = Arrays.copyOf(indexPos, indexCount * 2);
+                }
+                indexSeq[indexCount] = seq;
+                indexPos[indexCount] = pos;
+                indexCount++;
+            }
+            last = seq;
+        }
+
+        // Start of the scan for a sequence number, from the sparse index
+        int scanStart(long seq){
+            int lo = 0, hi = indexCount - 1, found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexSeq[mid] <= seq) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return indexCount == 0 ? 0 : indexPos[found];
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final long mMaxBytes;
+    private final ArrayList<Segment> mSegments = new ArrayList<>(); // Oldest first, guarded by this
+    private long mNext = 0;                                          // Sequence after the last record, guarded by this
+
+    private final long mRunStart;                                    // First sequence number this run may write
+
+    private final MpscRingBuffer<Entry> mQueue = new MpscRingBuffer<>(QUEUE_CAPACITY);
+    private final MpscRingBuffer<Entry> mRepeated = new MpscRingBuffer<>(QUEUE_CAPACITY); // Entries whose count is final
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicBoolean mSleeping = new AtomicBoolean(false);
+    private final Thread mFlusher;
+    private volatile boolean mRunning = true;
+
+    /* Open a journal, recovering whatever is already in the directory
+     * param dir            Directory for the segment files, created if needed
+     * param segmentBytes   Size of each segment file
+     * param maxBytes       Total size kept before the oldest segments are deleted
+     * throws IOException when the directory or a segment can't be opened
+     */
+    public Journal(File dir, int segmentBytes, long maxBytes) throws IOException{
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mMaxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        recover();
+        mRunStart = mNext;
+
+        mFlusher = new Thread("Loggerino-Journal"){
+            @Override
+            public void run(){
+                flushLoop();
+            }
+        };
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    /* Queue an entry to be written, never blocks
+     * param entry  The entry, its sequence number already assigned
+     */
+    public void append(Entry entry){
+        if (!mQueue.offer(entry)) {
+            entry.takeLongUtf8(); // Not needed any more
+            mDropped.incrementAndGet();
+            return;
+        }
+        if (mSleeping.get() && mSleeping.compareAndSet(true, false)) LockSupport.unpark(mFlusher);
+    }
+
+    /* Queue an entry's final repeat count to be patched into its record, never blocks. If the
+     * record isn't written yet it will be with the count as it is then, and if the queue is full
+     * the record keeps the count it was written with
+     * param entry  An entry already appended, that no more repeats will be collapsed into
+     */
+    public void repeated(Entry entry){
+        if (!mRepeated.offer(entry)) return;
+        if (mSleeping.get() && mSleeping.compareAndSet(true, false)) LockSupport.unpark(mFlusher);
+    }
+
+    // Returns the sequence number after the last one written, where a new run should carry on
+    public synchronized long nextSequence(){
+        return mNext;
+    }
+
+    // Returns the oldest sequence number still on disk, or nextSequence() if there is none
+    public synchronized long oldestSequence(){
+        return mSegments.isEmpty() ? mNext : mSegments.get(0).base;
+    }
+
+    // Returns the number of entries dropped because the flusher fell behind
+    public long getDroppedCount(){
+        return mDropped.get();
+    }
+
+    /* Read an entry back
+     * param seq    Its sequence number
+     * returns      The entry, or null if it isn't in the journal
+     */
+    public synchronized Record read(long seq){
+        Segment segment = segment(seq);
+        int pos = segment == null ? -1 : find(segment, seq);
+        return pos < 0 ? null : decode(segment.map, pos);
+    }
+
+    // Returns the segment a sequence number would be in, or null. Caller holds the lock
+    private Segment segment(long seq){
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            if (mSegments.get(i).base <= seq) return mSegments.get(i);
+        }
+        return null;
+    }
+
+    /* Find a record in a segment. Caller holds the lock
+     * param segment    The segment from segment()
+     * param seq        Its sequence number
+     * returns          Where its length field is, or -1 if it was never written
+     */
+    private static int find(Segment segment, long seq){
+        if (seq > segment.last) return -1;
+        ByteBuffer buf = segment.map;
+        int pos = segment.scanStart(seq);
+        while (pos < segment.end) {
+            int len = buf.getInt(pos);
+            long found = buf.getLong(pos + 4);
+            if (found == seq) return pos;
+            if (found > seq) return -1; // gap, it was never written
+            pos += 4 + len;
+        }
+        return -1;
+    }
+
+    // Stop the flusher once the queue is written, and push everything to disk
+    public void close(){
+        mRunning = false;
+        LockSupport.unpark(mFlusher);
+        try {
+            mFlusher.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (!mSegments.isEmpty()) mSegments.get(mSegments.size() - 1).map.force();
+        }
+    }
+
+    // Flusher thread: write queued entries, then patch repeat counts, park when there are none
+    private void flushLoop(){
+        while (true) {
+            Entry entry;
+            boolean wrote = false;
+            while ((entry = mQueue.poll()) != null) {
+                try {
+                    write(entry);
+                } catch (IOException ex) {
+                    Log.e("Journal", "Write failed", ex);
+                }
+                wrote = true;
+            }
+            while ((entry = mRepeated.poll()) != null) {
+                patchRepeats(entry);
+                wrote = true;
+            }
+            if (wrote) continue;
+            if (!mRunning) return;
+
+            mSleeping.set(true);
+            if (mQueue.isEmpty() && mRepeated.isEmpty() && mRunning) LockSupport.parkNanos(this, 1000 * 1000 * 1000L);
+            mSleeping.set(false);
+        }
+    }
+
+    /* Overwrite the repeat count of an entry's record, the last field. Only records written this
+     * run, which all have one
+     * param entry  The entry
+     */
+    private synchronized void patchRepeats(Entry entry){
+        long seq = entry.getSequence();
+        Segment segment = seq < mRunStart ? null : segment(seq);
+        int pos = segment == null ? -1 : find(segment, seq);
+        if (pos < 0) return; // not written yet, or dropped
+        segment.map.putInt(pos + segment.map.getInt(pos), entry.getRepeats());
+    }
+
+    /* Write one entry, rotating to a new segment if it doesn't fit
+     * param entry  The entry
+     * throws IOException when a new segment can't be created
+     */
+    private void write(Entry entry) throws IOException{
+        boolean shortInLong = entry.isShortInLong();
+        byte[] tag = bytes(entry.getTag());
+        byte[] shortMsg = shortInLong ? null : bytes(entry.getLoggedShortMsg());
+        byte[] longMsg = entry.takeLongUtf8();
+        if (longMsg == null) longMsg = bytes(entry.getLoggedLongMsg());
+        int tagLen = tag == null ? 0 : Math.min(tag.length, NULL_16 - 1);
+        int shortLen = shortMsg == null ? 0 : Math.min(shortMsg.length, NULL_16 - 1);
+        int len = 8 + 8 + 1 + 2 + tagLen + 2 + shortLen + 4 + (longMsg == null ? 0 : longMsg.length) + 4;
+        long seq = entry.getSequence();
+
+        synchronized (this) {
+            if (seq < mNext) return; // already on disk from an earlier run
+            Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (segment == null || segment.end + 4 + len > segment.map.capacity()) segment = rotate(seq, 4 + len);
+
+            ByteBuffer buf = segment.map;
+            int pos = segment.end;
+            buf.position(pos + 4);
+            buf.putLong(seq);
+            buf.putLong(entry.getTimeMillis());
+            buf.put((byte) (entry.getType().ordinal() | (shortInLong ? SHORT_IN_LONG : 0)));
+            buf.putShort((short) (tag == null ? NULL_16 : tagLen));
+            if (tag != null) buf.put(tag, 0, tagLen);
+            buf.putShort((short) (shortMsg == null ? NULL_16 : shortLen));
+            if (shortMsg != null) buf.put(shortMsg, 0, shortLen);
+            buf.putInt(longMsg == null ? NULL_32 : longMsg.length);
+            if (longMsg != null) buf.put(longMsg);
+            buf.putInt(entry.getRepeats());
+            buf.putInt(pos, len); // publish
+
+            segment.end = pos + 4 + len;
+            segment.added(seq, pos);
+            mNext = seq + 1;
+        }
+    }
+
+    /* Start a new segment and apply the size limit. Caller holds the lock
+     * param base   Sequence number of the first record
+     * param needed Bytes the first record needs
+     * returns      The new segment
+     * throws IOException when the file can't be created
+     */
+    private Segment rotate(long base, int needed) throws IOException{
+        if (!mSegments.isEmpty()) mSegments.get(mSegments.size() - 1).map.force();
+
+        File file = new File(mDir, String.format("%016x", base) + SUFFIX);
+        Segment segment = new Segment(file, base, map(file, Math.max(mSegmentBytes, needed)));
+        mSegments.add(segment);
+
+        long total = 0;
+        for (Segment s : mSegments) total += s.map.capacity();
+        while (total > mMaxBytes && mSegments.size() > 1) {
+            Segment oldest = mSegments.remove(0);
+            total -= oldest.map.capacity();
+            if (!oldest.file.delete()) Log.w("Journal", "Couldn't delete " + oldest.file);
+        }
+        return segment;
+    }
+
+    // Map the segments already in the directory and rebuild their indexes
+    private void recover() throws IOException{
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) continue;
+            long base;
+            try {
+                base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            if (file.length() == 0) {
+                file.delete();
+                continue;
+            }
+
+            Segment segment = new Segment(file, base, map(file, (int) file.length()));
+            ByteBuffer buf = segment.map;
+            int pos = 0;
+            while (pos + 4 + 8 <= buf.capacity()) {
+                int len = buf.getInt(pos);
+                if (len <= 0 || pos + 4 + len > buf.capacity()) break;
+                segment.added(buf.getLong(pos + 4), pos);
+                pos += 4 + len;
+            }
+            segment.end = pos;
+            clearTail(segment);
+            mSegments.add(segment);
+            if (segment.last >= 0) mNext = Math.max(mNext, segment.last + 1);
+        }
+    }
+
+    /* Zero whatever is past the last whole record, e.g. a record torn by a crash. New records
+     * are appended there, and might not cover all of it
+     * param segment    The recovered segment
+     */
+    private static void clearTail(Segment segment){
+        ByteBuffer buf = segment.map;
+        int pos = segment.end;
+        while (pos < buf.capacity() && buf.get(pos) == 0) pos++;
+        if (pos == buf.capacity()) return; // already clean, don't dirty the pages
+        for (pos = segment.end; pos < buf.capacity(); pos++) buf.put(pos, (byte) 0);
+        segment.map.force();
+    }
+
+    // Map a whole file read-write, growing it to size
+    private static MappedByteBuffer map(File file, int size) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+
+    /* Decode a record
+     * param segment    The segment
+     * param pos        Where the record's length field is
+     * returns          The record
+     */
+    private static Record decode(ByteBuffer segment, int pos){
+        ByteBuffer buf = segment.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int end = pos + 4 + buf.getInt(pos);
+        buf.position(pos + 4);
+
+        Record record = new Record();
+        record.seq = buf.getLong();
+        record.time = buf.getLong();
+        int type = buf.get() & 0xff;
+        record.type = TYPES[(type & ~SHORT_IN_LONG) % TYPES.length];
+        record.tag = string(buf, buf.getShort() & 0xffff, NULL_16);
+        record.shortMsg = string(buf, buf.getShort() & 0xffff, NULL_16);
+        record.longMsg = string(buf, buf.getInt(), NULL_32);
+        if ((type & SHORT_IN_LONG) != 0) record.shortMsg = record.longMsg;
+        if (buf.position() + 4 <= end) record.repeats = Math.max(1, buf.getInt());
+        return record;
+    }
+
+    // Read len bytes of UTF-8 at the buffer position, or null for the null marker
+    private static String string(ByteBuffer buf, int len, int nullMarker){
+        if (len == nullMarker) return null;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // UTF-8 bytes of a String, null stays null
+    private static byte[] bytes(String s){
+        return s == null ? null : s.getBytes(UTF8);
+    }
+}
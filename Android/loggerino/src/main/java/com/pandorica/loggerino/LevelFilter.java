@@ -0,0 +1,87 @@
+package com.pandorica.loggerino;
+
+import java.util.HashMap;
+
+/* Immutable set of minimum log levels, a default plus per-tag overrides
+ *
+ * Each level set is stored as a table of which LogTypes pass, so checking an entry is one hash
+ * lookup (only when there are overrides) and one array read. Changes build a new filter, which
+ * the owner publishes through a volatile field, so readers never lock.
+ */
+class LevelFilter {
+
+    // Filter that lets everything through
+    public static final LevelFilter ALL = new LevelFilter(passing(LogKeeper.LogType.V), null);
+
+    private final boolean[] mDefault;                   // Passing types by ordinal, for tags without an override
+    private final HashMap<String, boolean[]> mTags;     // Per-tag overrides, null if none
+
+    private LevelFilter(boolean[] defaults, HashMap<String, boolean[]> tags){
+        mDefault = defaults;
+        mTags = tags;
+    }
+
+    /* Check an entry against the filter
+     * param tag    The log tag
+     * param t      The type of log
+     * returns      True if the entry should be logged
+     */
+    public boolean isLoggable(String tag, LogKeeper.LogType t){
+        boolean[] passing = mDefault;
+        if (mTags != null) {
+            boolean[] forTag = mTags.get(tag);
+            if (forTag != null) passing = forTag;
+        }
+        return passing[t.ordinal()];
+    }
+
+    /* Copy with a new default minimum level
+     * param level  The least severe type that still gets logged
+     * returns      The new filter
+     */
+    public LevelFilter withMinLevel(LogKeeper.LogType level){
+        return new LevelFilter(passing(level), mTags);
+    }
+
+    /* Copy with a minimum level for one tag
+     * param tag    The log tag
+     * param level  The least severe type that still gets logged, null to use the default again
+     * returns      The new filter
+     */
+    public LevelFilter withMinLevel(String tag, LogKeeper.LogType level){
+        HashMap<String, boolean[]> tags = mTags == null ? new HashMap<String, boolean[]>() : new HashMap<>(mTags);
+        if (level == null) tags.remove(tag);
+        else tags.put(tag, passing(level));
+        return new LevelFilter(mDefault, tags.isEmpty() ? null : tags);
+    }
+
+    /* Severity of a log type, verbose being least severe
+     * param t  The type of log
+     * returns  Higher for more severe types
+     */
+    public static int severity(LogKeeper.LogType t){
+        switch (t){
+            case V:
+                return 0;
+            case D:
+                return 1;
+            case I:
+                return 2;
+            case W:
+                return 3;
+            case E:
+                return 4;
+            case WTF:
+                return 5;
+        }
+        return 0;
+    }
+
+    // Build the table of types at least as severe as level
+    private static boolean[] passing(LogKeeper.LogType level){
+        LogKeeper.LogType[] types = LogKeeper.LogType.values();
+        boolean[] passing = new boolean[types.length];
+        for (LogKeeper.LogType t : types) passing[t.ordinal()] = severity(t) >= severity(level);
+        return passing;
+    }
+}
@@ -0,0 +1,78 @@
+package com.pandorica.loggerino;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Least recently used cache of encoded display lines, by entry sequence number
+ *
+ * A line is the UTF-8 text of a short message frame, already truncated to the display width, so
+ * a page the operator returns to is copied rather than encoded again. Each line remembers the
+ * width and repeat count it was encoded for; a lookup with anything else misses. Not thread safe;
+ * each IOProcessor owns one.
+ */
+class LineCache {
+
+    // An encoded line and what it was encoded for
+    private static class Line{
+        final int lineLen;
+        final int repeats;
+        final byte[] bytes;
+
+        Line(int lineLen, int repeats, byte[] bytes){
+            this.lineLen = lineLen;
+            this.repeats = repeats;
+            this.bytes = bytes;
+        }
+    }
+
+    private final LinkedHashMap<Long, Line> mLines;
+
+    /* Constructor
+     * param capacity   Most lines kept
+     */
+    public LineCache(final int capacity){
+        mLines = new LinkedHashMap<Long, Line>(capacity * 4 / 3 + 1, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Line> eldest){
+                return size() > capacity;
+            }
+        };
+    }
+
+    /* Look up a line
+     * param seq        Sequence number of the entry
+     * param lineLen    Display width
+     * param repeats    Repeat count of the entry
+     * returns          The encoded line, or null
+     */
+    public byte[] get(long seq, int lineLen, int repeats){
+        Line line = mLines.get(seq);
+        if (line == null || line.lineLen != lineLen || line.repeats != repeats) return null;
+        return line.bytes;
+    }
+
+    // True if a line is cached, without reading it
+    public boolean contains(long seq, int lineLen, int repeats){
+        Line line = mLines.get(seq);
+        return line != null && line.lineLen == lineLen && line.repeats == repeats;
+    }
+
+    /* Cache a line
+     * param seq        Sequence number of the entry
+     * param lineLen    Display width it was encoded for
+     * param repeats    Repeat count it was encoded for
+     * param src        Buffer holding the encoded line
+     * param off        Where it starts
+     * param len        Its length
+     */
+    public void put(long seq, int lineLen, int repeats, byte[] src, int off, int len){
+        byte[] bytes = new byte[len];
+        System.arraycopy(src, off, bytes, 0, len);
+        mLines.put(seq, new Line(lineLen, repeats, bytes));
+    }
+
+    // Forget every line
+    public void clear(){
+        mLines.clear();
+    }
+}
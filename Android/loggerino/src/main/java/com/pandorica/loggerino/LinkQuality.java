@@ -0,0 +1,70 @@
+package com.pandorica.loggerino;
+
+/* Running estimate of how often frames on the serial link get damaged, and the frame size that
+ * gets the most log text through at that error rate
+ *
+ * Bytes sent, frames sent and errors are kept as exponentially decaying sums, so the estimate
+ * follows a cable that gets better or worse. With byte error probability p and h bytes of
+ * framing per frame, the payload per frame that maximises goodput, L/(L+h) * (1-p)^(L+h), is
+ * close to the root of L^2 + hL - h/p. IO thread only, apart from getErrorRate().
+ */
+class LinkQuality {
+
+    private static final double DECAY = 1.0 / 64;  // Weight of the newest frame
+
+    private double mBytes = 0;                  // Decayed bytes sent
+    private double mFrames = 0;                 // Decayed frames sent
+    private double mErrors = 0;                 // Decayed errors
+    private volatile double mErrorRate = 0;     // mErrors / mFrames, for other threads
+
+    // Forget the history, e.g. after the link changes speed
+    public void reset(){
+        mBytes = 0;
+        mFrames = 0;
+        mErrors = 0;
+        mErrorRate = 0;
+    }
+
+    /* Count a frame sent, or sent again
+     * param bytes  Its length
+     */
+    public void sent(int bytes){
+        mBytes = mBytes * (1 - DECAY) + bytes;
+        mFrames = mFrames * (1 - DECAY) + 1;
+        mErrors = mErrors * (1 - DECAY);
+        mErrorRate = Math.min(1, mErrors / mFrames);
+    }
+
+    /* Take back a frame counted as sent that the device threw away untested, because it came
+     * after a lost one. Go-back copies would otherwise dilute the error rate
+     * param bytes  Its length
+     */
+    public void untested(int bytes){
+        mBytes = Math.max(0, mBytes - bytes);
+        mFrames = Math.max(0, mFrames - 1);
+    }
+
+    // Count a frame that was damaged or lost
+    public void error(){
+        mErrors += 1;
+        if (mFrames > 0) mErrorRate = Math.min(1, mErrors / mFrames);
+    }
+
+    // Returns the recent fraction of frames damaged or lost
+    public double getErrorRate(){
+        return mErrorRate;
+    }
+
+    /* Payload size to aim for
+     * param overhead   Framing bytes per frame
+     * param min        Smallest payload worth sending
+     * param max        Largest payload the device takes
+     * returns          A size from min to max
+     */
+    public int payloadBudget(int overhead, int min, int max){
+        if (mErrors < 0.05 || mBytes <= 0) return max; // clean as far as we know
+        double p = mErrors / mBytes;
+        double best = (Math.sqrt((double) overhead * overhead + 4.0 * overhead / p) - overhead) / 2;
+        return (int) Math.max(min, Math.min(max, best));
+    }
+}
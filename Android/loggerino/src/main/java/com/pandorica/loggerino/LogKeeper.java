@@ -6,30 +6,33 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
-import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
-import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class LogKeeper {
 
-    // TODO: Make comments Javadoc compliant, exhaustive testing, rate limiting, handle id overflow
+    // TODO: Make comments Javadoc compliant, exhaustive testing
 
     private static LogKeeper instance = null; // The singleton instance of the class
 
@@ -52,37 +55,97 @@ public class LogKeeper {
         SCROLL,PAGE,EXPANDED
     }
 
+    // What to do with scroll entries when the device can't keep up
+    // DROP_OLDEST keeps the newest entries up to the limit
+    // LATEST_SCREEN drops all but the newest screenful each time the limit is reached
+    // SAMPLE keeps one in every few new entries once the limit is reached
+    public enum OverflowPolicy{
+        DROP_OLDEST,LATEST_SCREEN,SAMPLE
+    }
+
     // Name of intent to fire when USB permission given
     private static final String ACTION_USB_PERMISSION =
             "com.pandorica.loggerino.USB_PERMISSION";
 
-    private final LinkedList<LogEntry> mEntries; // All log entries
+    // Number of entries that can be waiting between sendLog and the IO thread
+    private static final int INGEST_CAPACITY = 4096;
 
-    private final Context mContext;   // The context of the application
+    // Number of entries kept for paging, older ones are evicted
+    private static final int STORE_CAPACITY = 16384;
+
+    // Off-heap long message storage: ring size, text per compressed block, and the shortest message
+    // worth moving there. Short messages that are also the long message keep SHORT_PREFIX chars on heap
+    private static final int ARENA_CAPACITY = 4 * 1024 * 1024;
+    private static final int ARENA_BLOCK = 16 * 1024;
+    private static final int ARENA_MIN_CHARS = 128;
+    private static final int SHORT_PREFIX = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int REPEAT_WINDOW = 8;     // Recent entries a new one may be collapsed into
+    private static final int MAX_POOLED_TAGS = 1024; // Distinct tags interned before new ones are left alone
+
+    private final EntryStore<LogEntry> mEntries; // Most recent log entries, only added to by the drainer
+
+    private final MpscRingBuffer<LogEntry> mIngest;  // Entries logged but not yet stored
+    private final AtomicBoolean mDraining = new AtomicBoolean(false); // Held by whoever drains mIngest
+    private final Drainer mDrainer = new Drainer();  // Stores entries while no session is running
+    private final AtomicLong mDropped = new AtomicLong();  // Entries lost because mIngest was full
+
+    // Rate limits, read lock-free on the logging thread
+    private final AtomicReferenceArray<RateLimiter> mTypeLimits =
+            new AtomicReferenceArray<>(LogType.values().length);
+    private final ConcurrentHashMap<String, RateLimiter> mTagLimits = new ConcurrentHashMap<>();
 
-    private LogState mState = LogState.SCROLL;  // The current state of the logger
+    private volatile Journal mJournal = null;   // Entries on disk, null unless enabled
+    private final LongMessageArena mArena = new LongMessageArena(ARENA_CAPACITY, ARENA_BLOCK); // Stored long messages
 
-    private boolean isReady = false;    // Are we ready to send logs to the device?
+    // Drainer only: recently stored entries with their original text and hash, to spot repeats
+    private final LogEntry[] mRecent = new LogEntry[REPEAT_WINDOW];
+    private final String[] mRecentShort = new String[REPEAT_WINDOW];
+    private final String[] mRecentLong = new String[REPEAT_WINDOW];
+    private final int[] mRecentHash = new int[REPEAT_WINDOW];
+    private int mRecentNext = 0;
+    private final HashMap<String, String> mTagPool = new HashMap<>(); // Drainer only: one String per tag
 
-    private int lineLen = 19;           // Maximum line length on device
+    private final Context mContext;   // The context of the application
+
+    // One session per connected device, replaced whole when one comes or goes
+    private volatile IOProcessor[] mSessions = new IOProcessor[0];
 
-    private IOProcessor mIO;            // Handles communication with the device
+    private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST; // Scroll backpressure policy
+    private volatile int mOverflowLimit = 64;   // Scroll entries queued before the policy kicks in
+    private volatile int mSampleRate = 4;       // SAMPLE keeps one in this many entries
+    private volatile int mScreenLines = 14;     // LATEST_SCREEN keeps this many, the sketch's MAX_MESSAGES
+    private volatile int mMaxBaudRate = 1000000; // Fastest link speed offered to the device
+    private volatile RetryPolicy mRetryPolicy = new RetryPolicy(5, 50, 2000); // Retries for frames and sync
+    private final AtomicLong mFailedFrames = new AtomicLong();  // Frames given up on
+    private final AtomicLong mUndeliverable = new AtomicLong(); // Entries in those frames
+    private final AtomicLong mBreakerTrips = new AtomicLong();  // Times failures forced a resync
 
     //*********** from serial library *********************************************
     private final UsbManager mManager;
 
-    private UsbSerialDriver mDriver;
+    private final HashMap<String, UsbSerialDriver> mPendingDrivers = new HashMap<>(); // Awaiting permission, by device name
 
     //****************************************************************************
 
     // Class encapsulating an entry in the log
-    private class LogEntry{
+    private class LogEntry implements Journal.Entry{
         private Date logTime;
         private String tag;
         private String shortMsg;
         private String longMsg;
         private LogType t;
-        private UINT16 id;
+        private final UINT16 id = new UINT16(0); // Set in place, so storing allocates nothing
+        private long seq;
+        private DeferredMessage deferred;   // Message rendered on demand, used for both short and long
+        private long longHandle = -1;       // Where longMsg is in mArena, -1 while it is on the heap
+        private int longBytes;              // Length of longMsg in mArena
+        private boolean shortIsLong;        // shortMsg is only a prefix of the long message
+        private volatile int repeats = 1;   // Times logged, counting repeats collapsed into this entry
+        private volatile long lastSeen;     // When the last repeat was logged, ms
+        private volatile boolean undeliverable; // A frame with this entry was given up on
+        private byte[] journalLong;         // UTF-8 long message moved to mArena, until the journal takes it
 
         public LogEntry(String tag, String shortMsg, String longMsg, LogType t) {
             logTime = new Date();
@@ -92,36 +155,174 @@ public class LogKeeper {
             this.t = t;
         }
 
+        public LogEntry(String tag, DeferredMessage msg, LogType t) {
+            this(tag, null, null, t);
+            this.deferred = msg;
+        }
+
+        // Entry read back from the journal
+        public LogEntry(Journal.Record record) {
+            this(record.tag, record.shortMsg, record.longMsg, record.type);
+            logTime = new Date(record.time);
+            repeats = record.repeats;
+            lastSeen = record.time;
+            setSequence(record.seq);
+        }
+
         public Date getLogTime() {
             return logTime;
         }
 
+        public long getTimeMillis() {
+            return logTime.getTime();
+        }
+
         public String getTag() {
             return tag;
         }
 
         public String getShortMsg() {
-            return shortMsg;
+            String msg;
+            if (shortIsLong) {
+                String full = storedLongMsg();
+                msg = full != null ? full : shortMsg;
+            }
+            else msg = deferred != null ? deferred.toString() : shortMsg;
+            return withRepeats(msg);
+        }
+
+        // Start of the short message, enough for a line on the display without reading mArena
+        public String getShortLine(int maxChars) {
+            if (!shortIsLong || maxChars > SHORT_PREFIX) return getShortMsg();
+            return withRepeats(shortMsg);
+        }
+
+        // A short message with the repeat count in front, where a line cut to the display keeps it
+        private String withRepeats(String msg) {
+            return repeats > 1 ? "(x" + repeats + ") " + msg : msg;
         }
 
         public String getLongMsg() {
-            return longMsg;
+            String msg = storedLongMsg();
+            if (repeats > 1) msg += "\nRepeated " + repeats + " times, last at " + String.format(Locale.US, "%tT.%<tL", lastSeen);
+            if (undeliverable) msg += "\nThe link gave up sending this entry when it was logged";
+            return msg;
+        }
+
+        // The long message as logged
+        private String storedLongMsg() {
+            if (deferred != null) return deferred.toString();
+            if (longHandle < 0) return longMsg;
+            String stored = mArena.get(longHandle, longBytes);
+            return stored != null ? stored : "[no longer stored] " + shortMsg;
+        }
+
+        // Returns true if a frame carrying this entry was given up on
+        public boolean isUndeliverable() {
+            return undeliverable;
+        }
+
+        // Returns the times this entry was logged, counting repeats
+        public int getRepeats() {
+            return repeats;
+        }
+
+        // Count a repeat collapsed into this entry. Drainer only
+        public void repeat(Date when) {
+            lastSeen = when.getTime();
+            repeats++;
+        }
+
+        /* Move a large long message off the heap into mArena. Drainer only, before the entry is shared
+         * param journaled  True if the entry is about to be journaled, which then writes the
+         *                  encoded message instead of reading it back from mArena
+         */
+        public void stash(boolean journaled) {
+            if (deferred != null || longMsg == null || longMsg.length() < ARENA_MIN_CHARS) return;
+            byte[] text = longMsg.getBytes(UTF8);
+            longHandle = mArena.put(text);
+            longBytes = text.length;
+            if (journaled) journalLong = text;
+            if (longMsg.equals(shortMsg)) {
+                shortMsg = shortMsg.substring(0, SHORT_PREFIX);
+                shortIsLong = true;
+            }
+            longMsg = null;
         }
 
         public LogType getType() {
             return t;
         }
 
+        // True if the short message is the long message or the start of it, as the journal keeps it
+        public boolean isShortInLong() {
+            return shortIsLong || deferred != null;
+        }
+
+        // The short message as logged, without the repeat count
+        public String getLoggedShortMsg() {
+            return shortMsg;
+        }
+
+        // The long message as logged, without the repeat count
+        public String getLoggedLongMsg() {
+            return storedLongMsg();
+        }
+
+        // Hand over the long message stash() encoded, once. Journal flusher only
+        public byte[] takeLongUtf8() {
+            byte[] text = journalLong;
+            journalLong = null;
+            return text;
+        }
+
         public UINT16 getId() {
             return id;
         }
 
-        public void setID(int id){
-            this.id = new UINT16(id);
+        public long getSequence() {
+            return seq;
         }
 
+        // Set the protocol ID without a store sequence number
         public void setID(UINT16 id){
-            this.id = id;
+            this.id.setValue(id.getValue());
+        }
+
+        // Set the store sequence number, the protocol ID is its low 16 bits
+        public void setSequence(long seq){
+            this.seq = seq;
+            this.id.setValue((int) seq);
+        }
+    }
+
+    // Stand-in entry telling the operator scroll entries were dropped, shown in place of the first
+    private class SkipMarker extends LogEntry{
+        private int skipped = 0;
+
+        public SkipMarker(LogEntry first) {
+            super("...", null, null, LogType.W);
+            setID(first.getId());
+        }
+
+        // Count another dropped entry
+        public void skip(){
+            skipped++;
+        }
+
+        // Count the entries another marker stood for
+        public void skip(SkipMarker other){
+            skipped += other.skipped;
+        }
+
+        @Override
+        public String getShortMsg() {
+            return skipped + " skipped";
+        }
+
+        @Override
+        public String getLongMsg() {
+            return skipped + " entries were not sent to keep up, page back to see them";
         }
     }
 
@@ -227,7 +428,12 @@ public class LogKeeper {
         }
     }
 
-    // Handles all serial communication
+    /* Handles all serial communication with one device
+     *
+     * Each session has its own state, line length and place in the log. Scroll entries are pulled
+     * from the shared store rather than pushed by the drainer, so a slow device only falls behind
+     * itself; when its place is evicted it skips forward to the oldest entry still stored.
+     */
     private class IOProcessor extends Thread{
 
         // Protocol defines
@@ -243,77 +449,199 @@ public class LogKeeper {
         private final byte ETX = 0x03;
         private final byte EOT = 0x04;
 
-        private final byte VERSION = 0x01;
+        private final byte VERSION = 0x01;     // Stop-and-wait, every frame is ACKed before the next
+        private final byte VERSION_2 = 0x02;   // Sliding window, see protocol.txt
+        private final byte VERSION_3 = 0x03;   // v2 with a CRC-16 on every frame and command
+        private final byte MAX_VERSION = VERSION_3;
+
+        private final int WINDOW_SIZE = 8;          // Most frames we keep in flight under v2
+        private final long ACK_TIMEOUT_MS = 500;    // Resend a v2 frame not ACKed within this
+        private final int MAX_BACKOFF = 2;          // Doublings of it while the device stays quiet
+
+        private final byte SHORT_TYPE = 0x01;
+        private final byte EXPANDED_TYPE = 0x02;
+        private final byte BATCH_TYPE = 0x03;
+        private final byte BATCH_CODE = 'B';        // Log type byte in a batch header, each entry carries its own
+        private final byte COMPRESSED_TYPE = 0x04;  // Expanded message compressed with LzCodec
+        private final byte RANGE_TYPE = 0x05;       // Byte range of an expanded message, see 'X'
+        private final int MAX_PAYLOAD = 0xffff;     // Longest payload the 16-bit length field can describe
+
+        // Capability flags exchanged in the sync capability block
+        private final byte CAP_BATCH = 0x01;        // Device understands BATCH_TYPE messages
+        private final byte CAP_COMPRESS = 0x02;     // Device decompresses COMPRESSED_TYPE messages
+        private final byte CAP_RANGE = 0x04;        // Device takes a RANGE_TYPE answer to 'E' and asks for the rest
+        private final byte SUPPORTED_CAPS = CAP_BATCH | CAP_COMPRESS | CAP_RANGE;
+
+        private final int COMPRESS_MIN_BYTES = 48;  // Expanded payloads shorter than this are sent as they are
+
+        // Link speeds by the code used in the sync capability block; every sync starts at the first
+        private final int[] BAUD_RATES = {115200, 250000, 500000, 1000000};
+        private final int PATTERN_LENGTH = 255;     // Test pattern echoed by the device at a new rate
+        private final int PATTERN_MAX_ERRORS = 2;   // Wrong or missing bytes tolerated before falling back
+        private final long BAUD_SETTLE_MS = 20;     // Time for the old rate to drain before switching
+
+        private final int BREAKER_THRESHOLD = 3;    // Frames failing in a row before we resync
+        private int mFailures = 0;                  // Frames failed in a row
+        private int mQuietTimeouts = 0;             // Resend timeouts since the device last answered
+        private boolean mBreakerOpen = false;       // Tripped and not synced since
+
+        private final int BATCH_MAX_ENTRIES = 16;   // Most short entries packed into one batch
+        private final int BATCH_MAX_BYTES = 320;    // Most payload bytes in one batch, the device buffers it whole
+        private final int BATCH_MIN_BYTES = 48;     // Least a batch is cut down to on a noisy link
+        private final int FRAME_OVERHEAD = 15;      // Framing bytes around a v3 payload, header to CRC and EOT
+        private final int RANGE_HEADER = 8;         // Total length and offset before the bytes of a range
+        private final int RANGE_MIN_BYTES = 64;     // Least a range is cut down to on a noisy link
+
+        // Entries in the frame being encoded, handed to the window with it
+        private final LogEntry[] mFrameEntries = new LogEntry[BATCH_MAX_ENTRIES];
+        private int mFrameEntryCount = 0;
+        private final LogEntry[] mFailedEntries = new LogEntry[BATCH_MAX_ENTRIES]; // Those of a frame given up on
+
+        private final LzCodec mLz = new LzCodec();
+        private byte[] mCompressed = new byte[256]; // Compressed payload before it goes back in the frame
+
+        private volatile int mBaudRate = 0;         // Current link speed
+        private volatile long mThroughput = 0;      // Bytes/s measured with the test pattern, 0 if not measured
+        private byte[] mPattern = null;             // The test pattern, built on first use
+
+        private final String mDeviceName;           // Name of the device this session talks to
+        private volatile LogState mState = LogState.SCROLL;  // The current state of the logger
+        private volatile boolean isReady = false;   // Are we ready to send logs to the device?
+        private int lineLen = 19;                   // Maximum line length on device
+        private long mScrollCursor = 0;             // Next stored entry to queue while scrolling
+        private final MpscRingBuffer<LogEntry> mRepeats = new MpscRingBuffer<>(64); // Entries whose count went up
+
+        private final int LINE_CACHE_SIZE = 256;    // Encoded display lines kept for paging
+        private final LineCache mLineCache = new LineCache(LINE_CACHE_SIZE);
+        private long mPageStart = EntryStore.NONE;  // First entry of the page last asked for
+        private int mPageCount = 0;                 // Entries on that page
+        private int mPrefetched = 0;                // Lines of the pages either side looked at so far
+
+        private byte mVersion = VERSION;            // Protocol version agreed during sync
+        private byte mCaps = 0;                     // Capability flags agreed during sync
+        private final SendWindow mWindow = new SendWindow(); // Frames in flight under v2
+        private final LinkQuality mLink = new LinkQuality(); // Error rate, sets the batch size
+        private LogEntry mPendingExpanded = null;   // Expanded entry waiting for room in the window
+        private int mPendingOffset = -1;            // Start of the byte range wanted from it, -1 for all of it
+        private int mPendingLength = 0;             // Bytes wanted from it
+
+        // Expanded text of the last entry expanded, so ranges of it aren't encoded again
+        private final FrameEncoder mExpandedText = new FrameEncoder(256);
+        private long mExpandedSeq = EntryStore.NONE;
+        private int mExpandedRepeats = 0;
+        private boolean mExpandedUndeliverable = false;
+
+        // Longest the main loop sleeps with nothing to do before checking in anyway
+        private final long IDLE_TIMEOUT_NS = 250 * 1000 * 1000L;
+
+        // The worst wake-up is logged when the session ends if it was slower than this
+        private final long WAKE_LATENCY_WARN_NS = 1000 * 1000L;
+
+        private final AtomicBoolean mSleeping = new AtomicBoolean(false); // True while parked waiting for work
+        private volatile long mWakeSignalled = 0;   // nanoTime of the wake() that ended the current sleep
+        private volatile long mMaxWakeLatency = 0;  // Worst wake latency seen, in ns
+
+
+        private final Deque<LogEntry> mSendBuffer;  // Holds all LogEntry objects waiting to be sent, IO thread only
+        private int mSampleCount = 0;               // Entries seen while sampling
+        private final InputListener mListener;      // Listens for input over serial
+        private final byte[] mCommandBuffer = new byte[255 + 5]; // Reused for command headers and payloads
 
+        // Outgoing frames are encoded here; nothing on the send path allocates once it has warmed up
+        private final FrameEncoder mEncoder = new FrameEncoder(256);
+        private final byte[] mSingleByte = new byte[1];          // For sendByte()
+        private int mTypePos;       // Where the message type of the frame being encoded is
+        private int mLengthPos;     // Where the length field of the frame being encoded is
+        private int mHeaderLen;     // Header length of the frame being encoded, STX follows it
 
+        // Frames queued to go out together in one write, see queueFrame()
+        private final byte[][] mGatherFrames = new byte[WINDOW_SIZE * 2 + 2][];
+        private final int[] mGatherLengths = new int[WINDOW_SIZE * 2 + 2];
+        private int mGatherCount = 0;
 
-        private final Queue<LogEntry> mSendBuffer;  // Holds all LogEntry objects waiting to be sent
-        private final InputListener mListener;      // Listens for input over serial
+        private final Transport mTransport;         // The link to the device
 
-        // From the serial class
-        private final SerialInputOutputManager mSerialIoManager;
-        private final UsbSerialPort mSerialPort;
-        private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+        // Acts as a buffer on transport read
+        private class InputListener implements Transport.Listener{
 
-        // Acts as a buffer on serial read
-        private class InputListener implements SerialInputOutputManager.Listener{
+            private static final int RECEIVE_CAPACITY = 16384; // Bytes buffered before input is dropped
 
-            private final Queue<Byte> mReceiveBuffer; // Buffer of received bytes
+            private final ByteRingBuffer mReceiveBuffer; // Buffer of received bytes
             private int numBytesNeeded = 0;           // Number of bytes waiting for
-            private boolean exceptState = false;      // True if we're in an exception
+            private volatile boolean exceptState = false; // True if we're in an exception
 
             // Constructor
             public InputListener(){
-                mReceiveBuffer = new ArrayDeque<>();
+                mReceiveBuffer = new ByteRingBuffer(RECEIVE_CAPACITY);
             }
 
             // Fires when new data received
             @Override
-            public void onNewData(byte[] data){
-
-                // Synchronized with getBytes
-                synchronized (mReceiveBuffer) {
+            public void onNewData(byte[] data, int offset, int length){
 
-                    // Add bytes to buffer
-                    for (byte b : data) {
-                        mReceiveBuffer.add(b);
-                    }
-                }
+                // Add bytes to buffer, anything that doesn't fit is lost and caught by the protocol
+                mReceiveBuffer.write(data, offset, length);
 
                 // If we're waiting for bytes, stop
                 synchronized (this) {
-                if (numBytesNeeded > 0 && mReceiveBuffer.size() >= numBytesNeeded) {
+                    if (numBytesNeeded > 0 && mReceiveBuffer.available() >= numBytesNeeded) {
 
                         numBytesNeeded = 0;
                         notify(); // Interrupt mid-read sleep
                     }
                 }
                 exceptState = false; // We're no longer having trouble reading
+
+                wake(); // Main loop may be idle
             }
 
             // Returns number of bytes available in buffer
             public int getNumAvailableBytes(){
-                return mReceiveBuffer.size();
+                return mReceiveBuffer.available();
             }
 
 
-            /* Retrieve a number of bytes from buffer
-             * param numBytes   The number of bytes to try to read
-             * returns          An array of bytes from the buffer, always numBytes long
-             * throws ProtocolException when not enough bytes can be read
-             * throws IOException       when ExceptState is true
+            /* Wait until a number of bytes are in the buffer
+             * param numBytes   The number of bytes needed
+             * param timeout    The maximum amount of time to wait for the bytes to arrive
+             * throws ProtocolException     When not enough bytes arrive in time
+             * throws IOException           When ExceptState is true
+             * throws InterruptedException  When interrupted
              */
-            private byte[] getBytes(int numBytes) throws ProtocolException, IOException{
-                if (numBytes > mReceiveBuffer.size()) throw new ProtocolException();
-                if (exceptState) throw new IOException();
-
-                byte[] result = new byte[numBytes];
-                synchronized (mReceiveBuffer){
-                    for (int i = 0; i < numBytes; i++){
-                        result[i] = mReceiveBuffer.remove();
+            private void awaitBytes(int numBytes, int timeout) throws ProtocolException, IOException, InterruptedException{
+                if (numBytes > mReceiveBuffer.available()) {
+                    long deadline = System.currentTimeMillis() + timeout;
+
+                    synchronized (this) {
+                        // Checked under the lock so a notify from onNewData can't slip past
+                        while (numBytes > mReceiveBuffer.available()) {
+                            long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) break;
+                            numBytesNeeded = numBytes;
+                            wait(remaining);
+                        }
+                        numBytesNeeded = 0;
                     }
                 }
-                return result;
+
+                // A failed transport won't deliver the rest, so that comes first
+                if (exceptState) throw new IOException();
+                if (numBytes > mReceiveBuffer.available()) throw new ProtocolException();
+            }
+
+
+            /* Read a number of bytes into an existing array, waiting for them to arrive. Called from IOProcessor
+             * param dst        The array to read into
+             * param offset     Where in dst to start writing
+             * param numBytes   The number of bytes to read
+             * param timeout    The maximum amount of time to wait for the bytes to arrive
+             * throws ProtocolException     When not enough bytes can be read
+             * throws IOException           When ExceptState is true
+             * throws InterruptedException  When interrupted
+             */
+            public void readBytes(byte[] dst, int offset, int numBytes, int timeout) throws ProtocolException, IOException,InterruptedException{
+                awaitBytes(numBytes, timeout);
+                mReceiveBuffer.read(dst, offset, numBytes);
             }
 
 
@@ -326,30 +654,22 @@ public class LogKeeper {
              * throws InterruptedException  When interrupted
              */
             public byte[] readBytes(int numBytes, int timeout) throws ProtocolException, IOException,InterruptedException{
-
-                if (numBytes <= mReceiveBuffer.size()) return getBytes(numBytes); // Will not throw ProtocolException
-
-                synchronized (this) {
-                    numBytesNeeded = numBytes;
-                    wait(timeout);
-                    numBytesNeeded = 0;
-                }
-
-                return getBytes(numBytes); // throws ProtocolException when not enough can be read
+                byte[] result = new byte[numBytes];
+                readBytes(result, 0, numBytes, timeout);
+                return result;
             }
 
 
-            // Convenience function, equivalent to readBytes(1,timeout)[0];
+            // Equivalent to readBytes(1,timeout)[0], without the array
             public byte readByte(int timeout) throws ProtocolException, IOException,InterruptedException{
-               return readBytes(1,timeout)[0];
+                awaitBytes(1, timeout);
+                return mReceiveBuffer.read();
             }
 
             // Flush the buffers
             public void flushBuffer() throws IOException{
-                synchronized (mReceiveBuffer){
-                    mReceiveBuffer.clear(); // Clear this buffer
-                    mSerialPort.purgeHwBuffers(true, false); // Clear hardware buffers
-                }
+                mReceiveBuffer.clear(); // Clear this buffer
+                mTransport.purgeInput(); // Clear hardware buffers
             }
 
             // Called on run error, sets exception state to true
@@ -360,99 +680,317 @@ public class LogKeeper {
         }
 
         /* Constructor for IOProcessor
-         * param device The USBDevice to open a connection with
-         * throws IOException passed through from library
+         * param transport  The link to the device, not yet opened
+         * throws IOException passed through from the transport
          */
-        public IOProcessor(UsbDevice device) throws IOException{
+        public IOProcessor(Transport transport) throws IOException{
             mSendBuffer = new ArrayDeque<>();
+            mTransport = transport;
+            mDeviceName = transport.getName();
 
-            // Tweaked rom serial library example
-            UsbDeviceConnection connection = mManager.openDevice(device);
-
-            mSerialPort = mDriver.getPorts().get(0);
-            mSerialPort.open(connection);
-            mSerialPort.setParameters(115200, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE); // Arduino default settings
             mListener = new InputListener();
-            mSerialIoManager = new SerialInputOutputManager(mSerialPort, mListener);
-            mExecutor.submit(mSerialIoManager);
+            mTransport.open(mListener);
+            setBaudRate(BAUD_RATES[0]); // Arduino default settings
         }
 
-        /* Add an entry to the send queue
+        /* Add an entry to the send queue. IO thread only
          * param entry      The entry to add
          * param stateAtAdd The logState the entry is expected to be added at
          */
         public void addEntry(LogEntry entry, LogState stateAtAdd) {
             if (mState == stateAtAdd){
-                synchronized (mSendBuffer) {
-                    mSendBuffer.add(entry);
-                }
+                if (stateAtAdd == LogState.SCROLL && !makeRoom(entry)) return;
+                mSendBuffer.add(entry);
+            }
+        }
+
+        /* Queue a scroll entry again because a repeat was collapsed into it. Nothing is queued if
+         * it hasn't gone out yet, it will carry the new count when it does
+         * param entry  The entry that repeated
+         */
+        public void addRepeat(LogEntry entry) {
+            if (!mSendBuffer.contains(entry)) addEntry(entry, LogState.SCROLL);
+        }
+
+        // Tell this session an entry's repeat count went up. Drainer only
+        public void repeated(LogEntry entry) {
+            mRepeats.offer(entry); // If full the device just sees the count later
+        }
+
+        // Returns the name of the device
+        public String getDeviceName(){
+            return mDeviceName;
+        }
+
+        // Returns the link to the device
+        public Transport getTransport(){
+            return mTransport;
+        }
+
+        /* Queue the scroll entries stored since last time, and the repeats of ones already queued.
+         * Outside scroll mode the cursor just follows the newest entry, so scrolling resumes from
+         * there. IO thread only
+         */
+        private void pullScroll(){
+            boolean scrolling = isReady && mState == LogState.SCROLL;
+            LogEntry repeat;
+            while ((repeat = mRepeats.poll()) != null) {
+                if (scrolling && repeat.getSequence() < mScrollCursor) addRepeat(repeat);
+            }
+
+            long newest = mEntries.newestSequence();
+            if (!scrolling) {
+                mScrollCursor = newest + 1;
+                return;
+            }
+            mScrollCursor = Math.max(mScrollCursor, mEntries.oldestSequence());
+            for (; mScrollCursor <= newest; mScrollCursor++) {
+                LogEntry entry = mEntries.get(mScrollCursor);
+                if (entry != null) addEntry(entry, LogState.SCROLL);
+            }
+        }
+
+        // True if there are scroll entries or repeats this session hasn't queued yet
+        private boolean hasScrollWork(){
+            if (!mRepeats.isEmpty()) return true;
+            return isReady && mState == LogState.SCROLL && mEntries.newestSequence() >= mScrollCursor;
+        }
+
+        /* Apply the overflow policy before queueing a scroll entry. Dropped entries are counted by
+         * a SkipMarker kept at the head of the queue, so the device is told about them
+         * param entry  The entry about to be queued
+         * returns      True to queue the entry, false if the policy dropped it
+         */
+        private boolean makeRoom(LogEntry entry){
+            OverflowPolicy policy = mOverflowPolicy;
+            int limit = Math.max(1, mOverflowLimit);
+            int queued = queuedEntries();
+            if (queued < limit) {
+                mSampleCount = 0;
+                return true;
+            }
+
+            if (policy == OverflowPolicy.SAMPLE && mSampleCount++ % Math.max(1, mSampleRate) != 0) {
+                skip(entry);
+                return false;
+            }
+
+            // Drop the oldest until there's room, LATEST_SCREEN until only a screenful is left
+            int keep = policy == OverflowPolicy.LATEST_SCREEN ? Math.min(limit, Math.max(1, mScreenLines)) : limit;
+            while (queuedEntries() >= keep) {
+                SkipMarker marker = headMarker();
+                LogEntry oldest = marker == null ? mSendBuffer.poll() : removeAfterMarker();
+                if (oldest == null) break;
+                skip(oldest);
+            }
+            return true;
+        }
+
+        // Number of real entries queued, not counting a skip marker
+        private int queuedEntries(){
+            return mSendBuffer.size() - (headMarker() == null ? 0 : 1);
+        }
+
+        // The skip marker at the head of the queue, if there is one
+        private SkipMarker headMarker(){
+            LogEntry head = mSendBuffer.peek();
+            return head instanceof SkipMarker ? (SkipMarker) head : null;
+        }
+
+        // Remove the entry behind the head skip marker
+        private LogEntry removeAfterMarker(){
+            LogEntry marker = mSendBuffer.poll();
+            LogEntry oldest = mSendBuffer.poll();
+            mSendBuffer.addFirst(marker);
+            return oldest;
+        }
+
+        // Count a dropped scroll entry on the head skip marker, adding one if needed
+        private void skip(LogEntry entry){
+            SkipMarker marker = headMarker();
+            if (marker == null) {
+                marker = new SkipMarker(entry);
+                mSendBuffer.addFirst(marker);
+            }
+            marker.skip();
+        }
+
+        /* Wake the main loop if it is idle. Safe from any thread and never blocks; costs one
+         * volatile read when the loop is already awake
+         */
+        public void wake(){
+            if (mSleeping.get() && mSleeping.compareAndSet(true, false)) {
+                mWakeSignalled = System.nanoTime();
+                LockSupport.unpark(this);
+            }
+        }
+
+        // Returns the worst wake-up time seen, in ns
+        public long getMaxWakeLatency(){
+            return mMaxWakeLatency;
+        }
+
+        /* Park until wake() is called or the timeout passes. The sleeping flag is raised before
+         * the last check for work, so a wake() that lands in between is never lost
+         * param timeout    Longest to sleep, in ns
+         */
+        private void waitForWork(long timeout){
+            mWakeSignalled = 0;
+            mSleeping.set(true);
+            if (mListener.getNumAvailableBytes() > 0 || !mIngest.isEmpty() || hasScrollWork()) {
+                mSleeping.set(false);
+                return;
+            }
+
+            LockSupport.parkNanos(this, timeout);
+            mSleeping.set(false);
+
+            // Record how long the wake-up took
+            long signalled = mWakeSignalled;
+            if (signalled != 0) {
+                long latency = System.nanoTime() - signalled;
+                if (latency > mMaxWakeLatency) mMaxWakeLatency = latency;
             }
         }
 
         // Destructor, clean up thread (must be called manually)
         public void destroyObj(){
-            mSerialIoManager.stop();
+            // Reported here rather than as it happens, so the wait loop allocates nothing
+            if (mMaxWakeLatency > WAKE_LATENCY_WARN_NS) Log.w("IOProcessor", "Slowest wake-up: " + mMaxWakeLatency / 1000 + "us");
+            mTransport.close();
+            removeSession(this);
         }
 
         // Run thread
         public void run(){
 
-
-            // While not synchronized
-            while(!isReady){
-                try {
-                    // Read byte from serial
-                    byte queryByte = mListener.readByte(1000);
-
-                    // Initiate sync or NAK
-                    if (queryByte == ENQ){
-                        sync();
-                    }else{
-                        sendAndFlush(NAK);
-                    }
-                }catch (IOException ex){
-                    Log.e("Sync","Exception",ex);
-                    return;
-                }catch (InterruptedException ex){
-                    break;
-                }catch (ProtocolException ex){
-                    // this is expected if no ENQ is received, so carry on
-                }
-            }
-
             // Main loop
             while(!interrupted()){
                 try {
 
+                    // Pull in everything logged since last time around
+                    drainIngest();
+
+                    // While not synchronized
+                    if (!isReady) {
+                        mScrollCursor = mEntries.newestSequence() + 1;
+                        if (!awaitSync()) break;
+                        continue;
+                    }
+                    pullScroll();
+
+                    if (mVersion >= VERSION_2) {
+                        runWindowed();
+                        continue;
+                    }
+
                     // If there's a message waiting, read it
                     if (mListener.getNumAvailableBytes() > 0) readMessage();
 
                     // if there's a message to send, send it.
-                    if (!mSendBuffer.isEmpty()) sendShortMessage(mSendBuffer.remove());
+                    if (canBatch()) sendBatch();
+                    else if (!mSendBuffer.isEmpty()) sendShortMessage(mSendBuffer.remove());
+
+                    // Nothing left to do, so sleep until something turns up
+                    else if (mListener.getNumAvailableBytes() == 0 && !prefetch()) waitForWork(IDLE_TIMEOUT_NS);
                 }catch(InterruptedException ex){
                     break;
                 }
             }
 
+            // Clean up
+            destroyObj();
+        }
+
+        /* Wait a while for the device to ask for a sync, and sync. After the circuit breaker has
+         * tripped, ask for one ourselves if the device doesn't
+         * returns  False if the serial port failed and the thread should stop
+         * throws InterruptedException on interrupt
+         */
+        private boolean awaitSync() throws InterruptedException{
             try {
-                // Clean up
-                destroyObj();
-                mSerialPort.close();
-            }catch (Exception ex){
-                return; // We're closing anyway...
+                // Read byte from serial
+                byte queryByte = mListener.readByte(1000);
+
+                // Initiate sync or NAK
+                if (queryByte == ENQ){
+                    sync();
+                }else{
+                    sendAndFlush(NAK);
+                }
+            }catch (IOException ex){
+                Log.e("Sync","Exception",ex);
+                return false;
+            }catch (ProtocolException ex){
+                // this is expected if no ENQ is received, so carry on
+                if (mBreakerOpen) sync();
+            }
+            return true;
+        }
+
+        /* Count a frame that couldn't be delivered. Enough of them in a row trips the circuit
+         * breaker: whatever is queued is dropped and the link is synced again
+         * returns  True if it tripped
+         */
+        private boolean frameFailed(){
+            mFailedFrames.incrementAndGet();
+            if (++mFailures < BREAKER_THRESHOLD) return false;
+
+            Log.w("IOProcessor", mFailures + " frames failed in a row, resyncing");
+            mFailures = 0;
+            mBreakerOpen = true;
+            mBreakerTrips.incrementAndGet();
+            sync();
+            return true;
+        }
+
+        // Count a frame the device took, closing the circuit breaker
+        private void frameDelivered(){
+            mFailures = 0;
+            mBreakerOpen = false;
+        }
+
+        /* Count entries in a frame that won't be sent, and mark them so
+         * param entries    The entries
+         * param count      Number of them
+         */
+        private void undeliverable(LogEntry[] entries, int count){
+            for (int i = 0; i < count; i++) undeliverable(entries[i]);
+        }
+
+        // Count an entry that won't be sent and mark it so. A skip marker counts the entries it stood for
+        private void undeliverable(LogEntry entry){
+            if (entry instanceof SkipMarker) {
+                mUndeliverable.addAndGet(((SkipMarker) entry).skipped);
+                return;
             }
+            entry.undeliverable = true;
+            mUndeliverable.incrementAndGet();
         }
 
         // Sync with Arduino
         private void sync() {
-            boolean doNAK = false; // Do we just flush or do we send NAK?
-
             if (interrupted()) return;
+            abandonWindow();
+            if (mState == LogState.SCROLL) {
+                for (LogEntry entry : mSendBuffer) undeliverable(entry); // a page is just asked for again
+            }
+            mSendBuffer.clear();
+            RetryPolicy retry = mRetryPolicy;
             try{
+              for (int attempt = 1; ; attempt++) {
+                boolean doNAK = false; // Do we just flush or do we send NAK?
                 try {
                     mListener.flushBuffer(); // initial flush
                     isReady = false;         // reset ready flag
                     mSendBuffer.clear();
+                    mVersion = VERSION;      // until negotiated otherwise
+                    mCaps = 0;
+                    mWindow.reset(1);
+                    mQuietTimeouts = 0;
+                    mGatherCount = 0;
+                    if (mBaudRate != BAUD_RATES[0]) setBaudRate(BAUD_RATES[0]);
+                    mThroughput = 0;
 
                     // Do send protocol
                     sendByte(SYN);
@@ -461,16 +999,32 @@ public class LogKeeper {
                     doNAK = true;
                     byte[] msg = mListener.readBytes(3, 500);
 
-                    if (msg[0] != SOH || msg[2] != EOT) throw new ProtocolException();
+                    if (msg[0] != SOH) throw new ProtocolException();
+                    if (msg[1] != lineLen) mLineCache.clear(); // encoded for the old width
                     lineLen = (int)msg[1];
-                    sendByte(ACK);
+                    mPageStart = EntryStore.NONE;
+                    mEncoder.reserve(maxLogFrame());
+                    mWindow.reserve(maxLogFrame(), BATCH_MAX_ENTRIES);
+
+                    // Plain EOT is v1 firmware, ETB starts a capability block
+                    if (msg[2] == EOT) {
+                        mVersion = VERSION;
+                        mWindow.reset(1);
+                        sendByte(ACK);
+                    }
+                    else if (msg[2] == ETB) negotiate();
+                    else throw new ProtocolException();
+                    mPendingExpanded = null;
 
                     // Set states
                     isReady = true;
                     mState = LogState.SCROLL;
 
                     mListener.flushBuffer();
-                    Log.d("Sync","Synced");
+                    mFailures = 0;
+                    mBreakerOpen = false;
+                    Log.d("Sync","Synced, protocol v" + mVersion + ", window " + mWindow.size() + ", " + mBaudRate + " baud");
+                    return;
                 } catch (IOException ex) {
                     Log.e("Sync", "exception", ex);
                     return;
@@ -482,25 +1036,167 @@ public class LogKeeper {
                             sendAndFlush(NAK);
                         }
                         else mListener.flushBuffer();
-                        sleep(500);
-                        sync();
                     } catch (IOException ex1) {
                         return;
                     }
+
+                    // Out of attempts, leave it to the next ENQ or breaker retry
+                    if (!retry.canRetry(attempt)) {
+                        Log.w("Sync", "Gave up after " + attempt + " attempts");
+                        return;
+                    }
+                    sleep(retry.delay(attempt));
                 }
+              }
             }catch(InterruptedException ex) {
                 // nested trys because even the catch can throw InterruptedException
                 return;
             }
         }
 
+        /* Read the device's capability block and answer with what we will use
+         * Device:  <block length 8-bit> <max version 8-bit> <max window 8-bit> <capabilities 8-bit> <max baud 8-bit> EOT
+         * Android: ACK ETB <block length 8-bit> <version 8-bit> <window 8-bit> <capabilities 8-bit> <baud 8-bit> EOT
+         * Fields past the ones we know are ignored, missing ones fall back to v1 behaviour
+         * throws ProtocolException when the block is malformed
+         * throws IOException on serial problem
+         * throws InterruptedException on interrupt
+         */
+        private void negotiate() throws ProtocolException, IOException, InterruptedException{
+            int len = new UINT8(mListener.readByte(500)).getValue();
+            byte[] caps = mListener.readBytes(len + 1, 500);
+            if (caps[len] != EOT) throw new ProtocolException();
+
+            int deviceVersion = len > 0 ? new UINT8(caps[0]).getValue() : VERSION;
+            int deviceWindow = len > 1 ? new UINT8(caps[1]).getValue() : 1;
+            byte deviceCaps = len > 2 ? caps[2] : 0;
+            int deviceBaud = len > 3 ? new UINT8(caps[3]).getValue() : 0;
+
+            mVersion = (byte) Math.max(VERSION, Math.min(MAX_VERSION, deviceVersion));
+            int window = mVersion >= VERSION_2 ? Math.max(1, Math.min(WINDOW_SIZE, deviceWindow)) : 1;
+            mWindow.reset(window);
+            mCaps = (byte) (deviceCaps & SUPPORTED_CAPS);
+
+            // Fastest rate both sides allow; a link without a baud rate stays as it is
+            int baud = 0;
+            while (mTransport.hasBaudRate() && baud + 1 < BAUD_RATES.length && baud + 1 <= deviceBaud && BAUD_RATES[baud + 1] <= mMaxBaudRate) baud++;
+
+            byte[] reply = {ACK, ETB, 4, mVersion, (byte) window, mCaps, (byte) baud, EOT};
+            write(reply, 0, reply.length);
+            if (baud > 0) switchBaudRate(BAUD_RATES[baud]);
+        }
+
+        /* Move to a faster link speed agreed in the capability block, and check it works by having
+         * the device echo a test pattern. Too many errors, or no confirmation, and both sides go
+         * back to the default speed
+         * Android: ENQ <length 8-bit> <pattern>
+         * Device:  ACK <length 8-bit> <pattern as received>
+         * Android: ACK to keep the new speed, NAK to go back
+         * Device:  ACK (at the new speed, only after ACK)
+         * param rate   The new speed
+         * throws IOException on serial problem
+         * throws InterruptedException on interrupt
+         */
+        private void switchBaudRate(int rate) throws IOException, InterruptedException{
+            sleep(BAUD_SETTLE_MS);
+            setBaudRate(rate);
+            mListener.flushBuffer();
+
+            byte[] pattern = testPattern();
+            byte[] probe = new byte[pattern.length + 2];
+            probe[0] = ENQ;
+            probe[1] = (byte) pattern.length;
+            System.arraycopy(pattern, 0, probe, 2, pattern.length);
+
+            long start = System.nanoTime();
+            write(probe, 0, probe.length);
+            int errors = pattern.length;
+            try {
+                if (mListener.readByte(500) == ACK && new UINT8(mListener.readByte(100)).getValue() == pattern.length) {
+                    byte[] echo = mListener.readBytes(pattern.length, 500);
+                    errors = 0;
+                    for (int i = 0; i < pattern.length; i++) if (echo[i] != pattern[i]) errors++;
+                }
+            } catch (ProtocolException ex) {
+                // Missing bytes count as errors
+            }
+            long elapsed = System.nanoTime() - start;
+
+            boolean keep = errors <= PATTERN_MAX_ERRORS;
+            sendByte(keep ? ACK : NAK);
+            if (keep) {
+                try {
+                    keep = mListener.readByte(200) == ACK;
+                } catch (ProtocolException ex) {
+                    keep = false;
+                }
+            }
+
+            if (keep) {
+                mThroughput = probe.length * 2L * 1000000000L / Math.max(1, elapsed);
+            } else {
+                Log.w("Sync", rate + " baud failed with " + errors + " errors, back to " + BAUD_RATES[0]);
+                sleep(BAUD_SETTLE_MS);
+                setBaudRate(BAUD_RATES[0]);
+            }
+            mListener.flushBuffer();
+        }
+
+        /* Change the link speed
+         * param rate   The new speed
+         * throws IOException on serial problem
+         */
+        private void setBaudRate(int rate) throws IOException{
+            if (!mTransport.hasBaudRate()) return;
+            mTransport.setBaudRate(rate);
+            if (rate != mBaudRate) mLink.reset(); // errors at one speed say little about another
+            mBaudRate = rate;
+        }
+
+        // Returns the test pattern: alternating bits, all zeros and ones, then a spread of values
+        private byte[] testPattern(){
+            if (mPattern == null) {
+                mPattern = new byte[PATTERN_LENGTH];
+                for (int i = 0; i < PATTERN_LENGTH; i++) {
+                    switch (i % 4){
+                        case 0:
+                            mPattern[i] = 0x55;
+                            break;
+                        case 1:
+                            mPattern[i] = (byte) 0xaa;
+                            break;
+                        default:
+                            mPattern[i] = (byte) (i * 37);
+                    }
+                }
+                mPattern[PATTERN_LENGTH - 2] = 0x00;
+                mPattern[PATTERN_LENGTH - 1] = (byte) 0xff;
+            }
+            return mPattern;
+        }
+
+        // Returns the recent fraction of frames damaged or lost
+        public double getErrorRate(){
+            return mLink.getErrorRate();
+        }
+
+        // Returns the current link speed
+        public int getBaudRate(){
+            return mBaudRate;
+        }
+
+        // Returns the throughput measured when the link speed was last raised, in bytes/s, or 0
+        public long getThroughput(){
+            return mThroughput;
+        }
+
         /* Send a single byte
          * param toSend byte to send
          * throws IOException on serial problem
          */
         private void sendByte(byte toSend) throws IOException{
-            byte data[] = {toSend};
-            int written = mSerialPort.write(data,100);
+            mSingleByte[0] = toSend;
+            int written = mTransport.write(mSingleByte, 0, 1, 100);
             if (written < 1) throw new IOException("Write Failed to Complete");
         }
 
@@ -533,30 +1229,7 @@ public class LogKeeper {
                 // Anything other than a SOH is off-protocol
                 else if (start != SOH) throw new ProtocolException();
 
-
-                // Good start byte, so read ahead
-                byte[] header = mListener.readBytes(4, 500);
-
-                // Read header
-                byte version = header[0];
-                char cmd = (char)header[1];
-                int len = new UINT8(header[2]).getValue();
-                if (header[3] != ETB) throw new ProtocolException();
-
-                // ACK the data
-                sendByte(ACK);
-
-
-                // Read payload
-                byte[] data = mListener.readBytes(len + 3, 500);// len+3 to encompass start/end bytes
-
-
-                // Check known bytes
-                if (data[0] != STX || data[len+1] != ETX || data[len+2] != EOT) throw new ProtocolException();
-                sendByte(ACK);
-
-                // Handle received data
-                processCommand(cmd, Arrays.copyOfRange(data,1,len+1));
+                readCommand();
             }catch(IOException ex) {
                 Log.e("Read","Exception",ex);
                 return;
@@ -570,52 +1243,372 @@ public class LogKeeper {
             }
         }
 
-        /* Handle a received command from Arduino
-         * param cmd    The type of command received
-         * param data   The message's containing data
+        /* Read and process the rest of a command after its SOH. Under v1 the header is ACKed
+         * before the payload is sent; under v2 the device sends both at once and gets one ACK
+         * throws ProtocolException when the command is malformed
+         * throws IOException on serial problem
          * throws InterruptedException on interrupt
          */
-        private void processCommand(char cmd, byte[] data) throws InterruptedException{
+        private void readCommand() throws ProtocolException, IOException, InterruptedException{
 
-            // Get page starting at...
-            if (cmd == 'P') {
-                mState = LogState.PAGE;
+            // Good start byte, so read ahead
+            byte[] header = mCommandBuffer;
+            mListener.readBytes(header, 0, 4, 500);
 
-                // Read count and ID
-                int count = new UINT8(data[2]).getValue();
-                int id = new UINT16(data).getValue();
+            // Read header
+            byte version = header[0];
+            char cmd = (char)header[1];
+            int len = new UINT8(header[2]).getValue();
+            if (header[3] != ETB) throw new ProtocolException();
 
-                // Clear send buffer and queue entries on page
-                mSendBuffer.clear();
-                for (int c = id; c < Math.min(mEntries.size(), id + count); c++) {
-                    addEntry(mEntries.get(c), LogState.PAGE);
-                }
-            }
+            // Under v3 the CRC covers everything from SOH
+            boolean crc = mVersion >= VERSION_3;
+            int check = crc ? Crc16.update(Crc16.update(Crc16.INITIAL, SOH), header, 0, 4) : 0;
 
-            // Get expanded entry for given ID
-            else if (cmd == 'E'){
-                mState = LogState.EXPANDED;
+            // ACK the data
+            if (mVersion < VERSION_2) sendByte(ACK);
 
-                // Read ID
-                int id = new UINT16(data).getValue();
 
-                // Send entry to device
-                mSendBuffer.clear();
-                LogEntry entry;
-                if (id < mEntries.size()) entry = mEntries.get(id);
-                else if (id < 0) entry = mEntries.getFirst();
-                else entry = mEntries.getLast();
+            // Read payload
+            byte[] data = mCommandBuffer;
+            int tail = crc ? 5 : 3;
+            mListener.readBytes(data, 0, len + tail, 500);// len+3 to encompass start/end bytes, +2 more for the CRC
 
-                sendExtendedMessage(entry);
+
+            // Check known bytes
+            if (data[0] != STX || data[len+1] != ETX || data[len+tail-1] != EOT) throw new ProtocolException();
+            if (crc && Crc16.update(check, data, 0, len + 2) != new UINT16(data, len + 2).getValue()) {
+                mLink.error();
+                throw new ProtocolException("Bad CRC");
             }
+            sendByte(ACK);
 
+            // Handle received data
+            processCommand(cmd, Arrays.copyOfRange(data,1,len+1));
+        }
+
+        /* One pass of the v2 main loop: handle whatever the device sent, top up the window, then
+         * sleep if there is nothing else we can do
+         * throws InterruptedException on interrupt
+         */
+        private void runWindowed() throws InterruptedException{
+            if (mListener.getNumAvailableBytes() > 0) readWindowed();
+            if (mVersion < VERSION_2) return; // resynced down to v1
+
+            pumpWindow();
+
+            boolean blocked = !mWindow.canSend() || (mSendBuffer.isEmpty() && mPendingExpanded == null);
+            if (blocked && mListener.getNumAvailableBytes() == 0 && !prefetch()) {
+                long timeout = IDLE_TIMEOUT_NS;
+                long expiry = mWindow.untilExpiry(System.currentTimeMillis(), ackTimeout());
+                if (expiry >= 0) timeout = Math.min(timeout, Math.max(1, expiry) * 1000 * 1000L);
+                waitForWork(timeout);
+            }
+        }
+
+        /* Read and handle one thing from the device under v2: an ACK, NAK or CAN for a frame,
+         * a command, or a request to resync
+         * throws InterruptedException on interrupt
+         */
+        private void readWindowed() throws InterruptedException{
+            try {
+                byte start = mListener.readByte(100);
+                if (start == ACK || start == NAK || start == CAN) mQuietTimeouts = 0;
+
+                if (start == ENQ) {
+                    sync();
+                } else if (start == ACK) {
+                    mWindow.acknowledge(mListener.readByte(100) & 0xff, System.currentTimeMillis());
+                    frameDelivered();
+                } else if (start == NAK) {
+
+                    // Everything before the NAKed frame arrived. The device may NAK each frame after
+                    // a gap, so ignore the repeats from frames sent before the resend
+                    int seq = mListener.readByte(100) & 0xff;
+                    long now = System.currentTimeMillis();
+                    mWindow.acknowledge((seq + SendWindow.SEQ_MODULO - 1) % SendWindow.SEQ_MODULO, now);
+                    if (mWindow.released(seq)) {
+
+                        // A garbled ACK or CAN let go of a frame the device never took, so send it
+                        // and everything after it again
+                        Log.w("IOProcessor", "Device wants frame " + seq + ", already released, resyncing");
+                        mLink.error();
+                        resync(seq, false);
+                    } else if (!mWindow.repeatedNak(seq, now)) {
+                        retryFrame(seq, now);
+                        flushFrames();
+                    }
+                } else if (start == CAN) {
+                    mWindow.cancel(mListener.readByte(100) & 0xff);
+                } else if (start == SOH) {
+                    readCommand();
+                }
+                // Anything else is line noise, lost frames are caught by the ACK timeout
+            }catch(IOException ex) {
+                Log.e("Read","Exception",ex);
+            }catch(ProtocolException ex){
+                try {
+                    sendAndFlush(NAK);
+                }catch (Exception exc){
+                    // do nothing
+                }
+            }
+        }
+
+        /* How long the oldest frame may go unacknowledged. It doubles with each timeout the device
+         * doesn't answer: one that read a garbled length takes everything as payload until the
+         * line is quiet for its byte timeout, which resends every 500ms would never allow
+         * returns  Milliseconds
+         */
+        private long ackTimeout(){
+            return ACK_TIMEOUT_MS << Math.min(mQuietTimeouts, MAX_BACKOFF);
+        }
+
+        /* Go back to the oldest frame that timed out, then send queued entries until the window
+         * is full, all in one write. Never waits for the device
+         */
+        private void pumpWindow(){
+            long now = System.currentTimeMillis();
+            try {
+                int expired = mWindow.expired(now, ackTimeout());
+                if (expired >= 0) {
+                    mQuietTimeouts++;
+                    if (!retryFrame(expired, now)) return;
+                }
+
+                // Expanded view goes ahead of anything still queued
+                if (mPendingExpanded != null && mWindow.canSend()) {
+                    if (mPendingOffset < 0) encodeExpanded(mPendingExpanded);
+                    else encodeRange(mPendingExpanded, mPendingOffset, mPendingLength);
+                    mPendingExpanded = null;
+                    sendFrame(now);
+                }
+
+                while (mWindow.canSend() && !mSendBuffer.isEmpty()) {
+                    if (canBatch()) encodeBatch();
+                    else encodeShort(mSendBuffer.remove());
+                    sendFrame(now);
+                }
+                flushFrames();
+            }catch(IOException ex){
+                Log.e("Send","Exception",ex);
+            }
+        }
+
+        /* Send a v2 frame again, with every frame after it since the device dropped those, unless
+         * it has had all the attempts mRetryPolicy allows. Only the lost frame counts an attempt.
+         * A frame given up on is counted as failed and its entries as undeliverable, and the link
+         * is resynced with the entries of the frames after it queued again
+         * param seq    Sequence number of the frame
+         * param now    Current time in ms
+         * returns      True if it was resent, false if it was given up on
+         * throws IOException on serial problem
+         */
+        private boolean retryFrame(int seq, long now) throws IOException{
+            mLink.error();
+            if (mWindow.sends(seq) < mRetryPolicy.getMaxAttempts()) {
+                resendFrame(seq, now, true);
+                int next = mWindow.nextSequence();
+                for (int s = (seq + 1) % SendWindow.SEQ_MODULO; s != next; s = (s + 1) % SendWindow.SEQ_MODULO) {
+                    resendFrame(s, now, false);
+                }
+                return true;
+            }
+
+            int count = mWindow.carried(seq, mFailedEntries);
+            undeliverable(mFailedEntries, count);
+            mWindow.cancel(seq);
+
+            // The device may have taken it and only lost the ACK, so the later frames can't just
+            // be moved down a number. Start both ends afresh instead
+            resync((seq + 1) % SendWindow.SEQ_MODULO, true);
+            return false;
+        }
+
+        /* Resync after losing track of what the device has, without losing what is waiting to be
+         * sent. Entries in frames from 'from' on, and the ones queued behind them, are queued
+         * again if the device comes back scrolling, so it may show some of them twice. Entries
+         * in earlier frames are counted as undeliverable by sync()
+         * param from   Oldest frame whose entries are sent again
+         * param failed True if a frame was given up on, which counts towards the circuit breaker
+         */
+        private void resync(int from, boolean failed){
+            Deque<LogEntry> kept = new ArrayDeque<>();
+            if (mState == LogState.SCROLL) {
+                for (int s = from, next = mWindow.nextSequence(); s != next; s = (s + 1) % SendWindow.SEQ_MODULO) {
+                    int count = mWindow.sentEntries(s, mFailedEntries);
+                    for (int i = 0; i < count; i++) kept.add(mFailedEntries[i]);
+                    mWindow.cancel(s);
+                }
+                kept.addAll(mSendBuffer);
+                mSendBuffer.clear();
+            }
+            Arrays.fill(mFailedEntries, null);
+            if (!failed || !frameFailed()) sync(); // a tripped breaker has resynced already
+
+            if (isReady && mState == LogState.SCROLL) {
+                for (LogEntry entry : kept) {
+                    if (entry instanceof SkipMarker) mergeMarker((SkipMarker) entry);
+                    else mSendBuffer.add(entry);
+                }
+                return;
+            }
+            for (LogEntry entry : kept) undeliverable(entry);
+        }
+
+        /* Queue a skip marker again. Only the head of the queue may be one, so its count goes on the
+         * head marker if there is one, and otherwise it becomes the head
+         * param marker The marker, from a frame sent before or the old queue
+         */
+        private void mergeMarker(SkipMarker marker){
+            SkipMarker head = headMarker();
+            if (head == null) mSendBuffer.addFirst(marker);
+            else head.skip(marker);
+        }
+
+        // Count the entries in frames still in the window as undeliverable, before a resync drops them
+        private void abandonWindow(){
+            int next = mWindow.nextSequence();
+            for (int s = mWindow.oldestSequence(); s != next; s = (s + 1) % SendWindow.SEQ_MODULO) {
+                int count = mWindow.carried(s, mFailedEntries);
+                undeliverable(mFailedEntries, count);
+                Arrays.fill(mFailedEntries, 0, count, null);
+            }
+        }
+
+        /* Put the frame in the encoder in the window and queue it to be written
+         * param now    Current time in ms
+         * throws IOException on serial problem
+         */
+        private void sendFrame(long now) throws IOException{
+            int seq = mWindow.nextSequence();
+            mWindow.sent(mEncoder.buffer(), mEncoder.position(), mFrameEntries, mFrameEntryCount, now);
+            queueFrame(mWindow.frame(seq), mEncoder.position());
+            mLink.sent(mEncoder.position());
+        }
+
+        /* Queue a frame that is in the window to be written again
+         * param seq        Its sequence number
+         * param now        Current time in ms
+         * param attempt    True if it was lost, false if it only follows one that was
+         * throws IOException on serial problem
+         */
+        private void resendFrame(int seq, long now, boolean attempt) throws IOException{
+            int len = mWindow.resend(seq, now, attempt);
+            if (len > 0) {
+                queueFrame(mWindow.frame(seq), len);
+                if (!attempt) mLink.untested(len); // the last copy came after the lost frame
+                mLink.sent(len);
+            }
+        }
+
+        /* Queue a frame held in the window, to go out with the others in one gathering write at
+         * flushFrames(). The window keeps the buffer until the frame is acknowledged, so it is
+         * written straight from there
+         * param frame  The frame
+         * param len    Its length
+         * throws IOException on serial problem
+         */
+        private void queueFrame(byte[] frame, int len) throws IOException{
+            if (mGatherCount == mGatherFrames.length) flushFrames();
+            mGatherFrames[mGatherCount] = frame;
+            mGatherLengths[mGatherCount++] = len;
+        }
+
+        /* Write the queued frames
+         * throws IOException on serial problem
+         */
+        private void flushFrames() throws IOException{
+            int count = mGatherCount;
+            if (count == 0) return;
+            mGatherCount = 0;
+            if (count == 1) write(mGatherFrames[0], 0, mGatherLengths[0]);
+            else mTransport.write(mGatherFrames, mGatherLengths, count, 500);
+        }
+
+        /* Write part of a buffer
+         * param buf    The bytes to write
+         * param offset Where in buf to start
+         * param len    Number of bytes to write
+         * throws IOException on serial problem
+         */
+        private void write(byte[] buf, int offset, int len) throws IOException{
+            mTransport.write(buf, offset, len, 500);
+        }
+
+        /* Handle a received command from Arduino
+         * param cmd    The type of command received
+         * param data   The message's containing data
+         * throws InterruptedException on interrupt
+         */
+        private void processCommand(char cmd, byte[] data) throws InterruptedException{
+
+            // Get page starting at...
+            if (cmd == 'P') {
+                mState = LogState.PAGE;
+
+                // Read count and ID
+                int count = new UINT8(data[2]).getValue();
+                long seq = mEntries.toSequence(new UINT16(data).getValue());
+
+                // Clear send buffer and queue entries on page, starting no earlier than the oldest kept
+                mSendBuffer.clear();
+                if (seq == EntryStore.NONE) return;
+                long end = Math.min(mEntries.newestSequence() + 1, seq + count);
+                mPageStart = Math.max(seq, oldestSequence());
+                mPageCount = count;
+                mPrefetched = 0;
+                for (long c = mPageStart; c < end; c++) {
+                    LogEntry entry = lookup(c);
+                    if (entry != null) addEntry(entry, LogState.PAGE);
+                }
+            }
+
+            // Get expanded entry for given ID
+            else if (cmd == 'E'){
+                mState = LogState.EXPANDED;
+
+                // Read ID
+                long seq = mEntries.toSequence(new UINT16(data).getValue());
+
+                // Send entry to device, falling back on the newest or oldest kept
+                mSendBuffer.clear();
+                if (mEntries.isEmpty()) return;
+                LogEntry entry;
+                if (seq == EntryStore.NONE) entry = lookup(mEntries.newestSequence());
+                else entry = lookup(Math.max(seq, oldestSequence()));
+
+                if (entry != null) sendExtendedMessage(entry);
+            }
+
+
+            // Get a byte range of the expanded entry for given ID
+            else if (cmd == 'X'){
+                mState = LogState.EXPANDED;
+                if (data.length < 8) return;
+
+                // Read ID, offset and length
+                long seq = mEntries.toSequence(new UINT16(data).getValue());
+                int offset = new UINT16(data, 2).getValue() | new UINT16(data, 4).getValue() << 16;
+                int length = new UINT16(data, 6).getValue();
+
+                // Same fallbacks as 'E'
+                mSendBuffer.clear();
+                if (mEntries.isEmpty()) return;
+                LogEntry entry;
+                if (seq == EntryStore.NONE) entry = lookup(mEntries.newestSequence());
+                else entry = lookup(Math.max(seq, oldestSequence()));
+
+                if (entry != null) sendRange(entry, offset, length);
+            }
 
             // Resume scrolling
             else if (cmd == 'R'){
                 // data written is dummy byte
                 mState = LogState.SCROLL;
                 mSendBuffer.clear();
-                if (!mEntries.isEmpty()) mSendBuffer.add(mEntries.getLast()); // start off with last log message
+                LogEntry last = lookup(mEntries.newestSequence());
+                if (last != null) mSendBuffer.add(last); // start off with last log message
             }
         }
 
@@ -625,7 +1618,34 @@ public class LogKeeper {
          */
         private void sendExtendedMessage(LogEntry entry) throws InterruptedException{
             if (isInterrupted()) return;
-            sendMessage(entry.getTag() + "-" + entry.getShortMsg() + ": " + entry.getLongMsg(),entry.getType(),entry.getId(),(byte)0x02);
+
+            // Under v2 it goes out with the next window top-up
+            if (mVersion >= VERSION_2) {
+                mPendingExpanded = entry;
+                mPendingOffset = -1;
+                return;
+            }
+            encodeExpanded(entry);
+            if (!sendMessage()) undeliverable(mFrameEntries, mFrameEntryCount);
+        }
+
+        /* Send a byte range of an entry's expanded text
+         * param entry  The entry
+         * param offset First byte wanted
+         * param length Bytes wanted
+         * throws InterruptedException on interrupt
+         */
+        private void sendRange(LogEntry entry, int offset, int length) throws InterruptedException{
+            if (isInterrupted()) return;
+
+            if (mVersion >= VERSION_2) {
+                mPendingExpanded = entry;
+                mPendingOffset = offset;
+                mPendingLength = length;
+                return;
+            }
+            encodeRange(entry, offset, length);
+            if (!sendMessage()) undeliverable(mFrameEntries, mFrameEntryCount);
         }
 
         /* Send a short message with a given LogEntry
@@ -634,87 +1654,383 @@ public class LogKeeper {
          */
         private void sendShortMessage(LogEntry entry) throws InterruptedException{
             if (isInterrupted()) return;
-            sendMessage(truncate(entry.getTag() + "-" + entry.shortMsg, lineLen), entry.t, entry.id, (byte) 0x01);
+            encodeShort(entry);
+            if (!sendMessage()) undeliverable(mFrameEntries, mFrameEntryCount);
         }
 
-        /* Sends a message
-         * param msg The message to send
-         * param t The type of the message
-         * param id The ID of the message
-         * param msgType The type (expanded or short)
+        // True if more than one entry is queued and the device takes batches
+        private boolean canBatch(){
+            return (mCaps & CAP_BATCH) != 0 && mSendBuffer.size() > 1;
+        }
+
+        /* Send queued short entries as one batch message
          * throws InterruptedException on interrupt
          */
-        private void sendMessage(String msg, LogType t, UINT16 id, byte msgType) throws InterruptedException{
+        private void sendBatch() throws InterruptedException{
+            if (isInterrupted()) return;
+            encodeBatch();
+            if (!sendMessage()) undeliverable(mFrameEntries, mFrameEntryCount);
+        }
+
+        /* Start a frame in the encoder: the header, with a placeholder length, then STX
+         * v1: SOH <version> <log type> <message type> <ID 16-bit> <length 16-bit> ETB
+         * v2: SOH <version> <log type> <message type> <sequence 8-bit> <ID 16-bit> <length 16-bit> ETB
+         * param typeCode   The log type code
+         * param id         The message ID
+         * param msgType    The message type
+         */
+        private void beginFrame(byte typeCode, UINT16 id, byte msgType){
+            FrameEncoder enc = mEncoder;
+            enc.reset();
+            enc.put(SOH);
+            enc.put(mVersion);
+            enc.put(typeCode);
+            mTypePos = enc.position();
+            enc.put(msgType);
+            if (mVersion >= VERSION_2) enc.put((byte) mWindow.nextSequence());
+            enc.putUInt16(id.getValue());
+            mLengthPos = enc.position();
+            enc.putUInt16(0);
+            enc.put(ETB);
+            mHeaderLen = enc.position();
+            enc.put(STX);
+            mFrameEntryCount = 0;
+        }
+
+        // Note an entry the frame being encoded carries
+        private void carry(LogEntry entry){
+            mFrameEntries[mFrameEntryCount++] = entry;
+        }
+
+        // Finish the frame in the encoder: fill in the length, then ETX, the CRC under v3, and EOT
+        private void endFrame(){
+            FrameEncoder enc = mEncoder;
+            enc.setUInt16(mLengthPos, enc.position() - mHeaderLen - 1);
+            enc.put(ETX);
+            if (mVersion >= VERSION_3) enc.putUInt16(Crc16.update(Crc16.INITIAL, enc.buffer(), 0, enc.position()));
+            enc.put(EOT);
+        }
+
+        // Encode a short message frame for an entry
+        private void encodeShort(LogEntry entry){
+            beginFrame(typeCode(entry.getType()), entry.getId(), SHORT_TYPE);
+            carry(entry);
+            putShortText(entry);
+            endFrame();
+        }
 
+        /* Encode an expanded message frame for an entry. If the payload, compressed or not, is
+         * more than the link budget allows and the device takes ranges, only the first range is
+         * sent and the device asks for the rest
+         * param entry  The entry
+         */
+        private void encodeExpanded(LogEntry entry){
+            beginFrame(typeCode(entry.getType()), entry.getId(), EXPANDED_TYPE);
+            carry(entry);
+            FrameEncoder text = expandedText(entry);
+            int length = text.position() <= MAX_PAYLOAD ? text.position() : charStart(text.buffer(), MAX_PAYLOAD);
+            mEncoder.put(text.buffer(), 0, length);
+            if ((mCaps & CAP_COMPRESS) != 0) compressPayload();
+            if ((mCaps & CAP_RANGE) != 0 && (text.position() > MAX_PAYLOAD || mEncoder.position() - mHeaderLen - 1 > rangeBudget())) {
+                encodeRange(entry, 0, rangeBudget());
+                return;
+            }
+            endFrame();
+        }
+
+        /* Returns the longest short or batch frame at the display width, counting the room the
+         * encoder asks for: a batch only stops after an entry takes it over its budget, and text is
+         * encoded with room for 3 bytes a character
+         */
+        private int maxLogFrame(){
+            return FRAME_OVERHEAD + BATCH_MAX_BYTES + 4 + 3 * Math.max(lineLen, 0);
+        }
+
+        // Returns the most bytes of text a range frame should carry on the link as it is now
+        private int rangeBudget(){
+            return mLink.payloadBudget(FRAME_OVERHEAD + RANGE_HEADER, RANGE_MIN_BYTES, MAX_PAYLOAD - RANGE_HEADER);
+        }
+
+        /* Encode a frame with a byte range of an entry's expanded text. The range is moved to
+         * whole UTF-8 characters: the start back to the beginning of its character, the end back
+         * to the end of the last whole one, but always taking at least one character
+         * Payload: <total length 32-bit> <offset of first byte sent 32-bit> <bytes>
+         * param entry  The entry
+         * param offset First byte wanted
+         * param length Bytes wanted, cut down to what the link budget allows
+         */
+        private void encodeRange(LogEntry entry, int offset, int length){
+            beginFrame(typeCode(entry.getType()), entry.getId(), RANGE_TYPE);
+            carry(entry);
+            FrameEncoder text = expandedText(entry);
+            byte[] bytes = text.buffer();
+            int total = text.position();
+
+            int start = offset < 0 || offset >= total ? total : charStart(bytes, offset);
+            long wanted = Math.min((long) start + Math.min(length, rangeBudget()), total);
+            int end = wanted >= total ? total : charStart(bytes, (int) wanted);
+            if (end <= start && start < total) end = charEnd(bytes, start, total);
+
+            mEncoder.putUInt32(total);
+            mEncoder.putUInt32(start);
+            mEncoder.put(bytes, start, end - start);
+            endFrame();
+        }
+
+        /* Returns the UTF-8 expanded text of an entry, "tag-short: long", encoding it unless it
+         * was the last one asked for
+         * param entry  The entry
+         */
+        private FrameEncoder expandedText(LogEntry entry){
+            FrameEncoder text = mExpandedText;
+            if (entry.getSequence() == mExpandedSeq && entry.getRepeats() == mExpandedRepeats
+                    && entry.isUndeliverable() == mExpandedUndeliverable && !(entry instanceof SkipMarker)) {
+                return text;
+            }
+            text.reset();
+            text.putUtf8(text(entry.getTag()));
+            text.put((byte) '-');
+            text.putUtf8(text(entry.getShortMsg()));
+            text.put((byte) ':');
+            text.put((byte) ' ');
+            text.putUtf8(text(entry.getLongMsg()));
+            mExpandedSeq = entry instanceof SkipMarker ? EntryStore.NONE : entry.getSequence();
+            mExpandedRepeats = entry.getRepeats();
+            mExpandedUndeliverable = entry.isUndeliverable();
+            return text;
+        }
+
+        // Position of the first byte of the UTF-8 character that pos falls in
+        private int charStart(byte[] bytes, int pos){
+            while (pos > 0 && (bytes[pos] & 0xc0) == 0x80) pos--;
+            return pos;
+        }
+
+        // Position just past the UTF-8 character starting at pos
+        private int charEnd(byte[] bytes, int pos, int limit){
+            pos++;
+            while (pos < limit && (bytes[pos] & 0xc0) == 0x80) pos++;
+            return pos;
+        }
 
-            // Build header
-            byte[] header = new byte[9];
-            header[0] = SOH;
-            header[1] = VERSION;
+        /* Replace the payload of the frame in the encoder with its compressed form, when that is
+         * smaller even counting the length prefix
+         * Payload: <uncompressed length 16-bit> <LzCodec stream>
+         */
+        private void compressPayload(){
+            FrameEncoder enc = mEncoder;
+            int start = mHeaderLen + 1;
+            int rawLen = enc.position() - start;
+            if (rawLen < COMPRESS_MIN_BYTES || rawLen > 0xffff) return;
+
+            if (mCompressed.length < rawLen) mCompressed = new byte[rawLen];
+            int n = mLz.compress(enc.buffer(), start, rawLen, mCompressed, 0, rawLen - 3);
+            if (n < 0) return;
+            enc.truncate(start);
+            enc.putUInt16(rawLen);
+            enc.put(mCompressed, 0, n);
+            enc.setByte(mTypePos, COMPRESSED_TYPE);
+        }
+
+        /* Take short entries off the send queue and encode them as a batch frame
+         * Payload: <count 8-bit> then per entry <log type 8-bit> <ID 16-bit> <length 8-bit> <message>
+         * At least one entry is always taken
+         * returns  The number of entries taken
+         */
+        private int encodeBatch(){
+            FrameEncoder enc = mEncoder;
+            beginFrame(BATCH_CODE, mSendBuffer.peek().getId(), BATCH_TYPE);
+            int countPos = enc.position();
+            enc.put((byte) 0); // count, filled in below
+            int budget = mLink.payloadBudget(FRAME_OVERHEAD, BATCH_MIN_BYTES, BATCH_MAX_BYTES);
+            int count = 0;
+
+            while (!mSendBuffer.isEmpty() && count < BATCH_MAX_ENTRIES) {
+                LogEntry entry = mSendBuffer.peek();
+                int start = enc.position();
+                enc.put(typeCode(entry.getType()));
+                enc.putUInt16(entry.getId().getValue());
+                int lenPos = enc.position();
+                enc.put((byte) 0);
+                putShortText(entry);
+
+                int len = Math.min(enc.position() - lenPos - 1, 255);
+                enc.truncate(lenPos + 1 + len);
+                enc.setByte(lenPos, (byte) len);
+
+                // Undo the entry if it doesn't fit, it goes in the next batch
+                if (count > 0 && enc.position() - mHeaderLen - 1 > budget) {
+                    enc.truncate(start);
+                    break;
+                }
+                carry(mSendBuffer.remove());
+                count++;
+            }
+
+            enc.setByte(countPos, (byte) count);
+            endFrame();
+            return count;
+        }
+
+        // Encode the text shown for an entry in scroll/page mode, from mLineCache when paging
+        private void putShortText(LogEntry entry){
+            if (mState != LogState.PAGE) {
+                encodeShortText(entry);
+                return;
+            }
+
+            byte[] line = mLineCache.get(entry.getSequence(), lineLen, entry.getRepeats());
+            if (line != null) {
+                mEncoder.put(line, 0, line.length);
+                return;
+            }
+            int start = mEncoder.position();
+            encodeShortText(entry);
+            mLineCache.put(entry.getSequence(), lineLen, entry.getRepeats(), mEncoder.buffer(), start, mEncoder.position() - start);
+        }
+
+        /* Encode one line of the pages either side of the one being shown into mLineCache, so the
+         * next page flip only has to copy. Called when there is nothing else to do
+         * returns  True if there may be more to prefetch
+         */
+        private boolean prefetch(){
+            if (mState != LogState.PAGE || mPageStart == EntryStore.NONE) return false;
+            long newest = mEntries.newestSequence();
+            long oldest = oldestSequence();
+
+            // Next page first, then the previous one from the top down
+            while (mPrefetched < 2 * mPageCount) {
+                int i = mPrefetched++;
+                long seq = i < mPageCount ? mPageStart + mPageCount + i : mPageStart - 1 - (i - mPageCount);
+                if (seq < oldest || seq > newest) continue;
+                LogEntry entry = lookup(seq);
+                if (entry == null || mLineCache.contains(seq, lineLen, entry.getRepeats())) continue;
+
+                mEncoder.reset();
+                encodeShortText(entry);
+                mLineCache.put(seq, lineLen, entry.getRepeats(), mEncoder.buffer(), 0, mEncoder.position());
+                return true;
+            }
+            return false;
+        }
+
+        // Encode the text shown for an entry in scroll/page mode, truncated to the display width
+        private void encodeShortText(LogEntry entry){
+            String tag = text(entry.getTag());
+            int max = Math.min(tag.length(), lineLen);
+            if (mEncoder.putUtf8(tag, max) < max || max == lineLen) return;
+            mEncoder.put((byte) '-');
+            mEncoder.putUtf8(text(entry.getShortLine(lineLen - max - 1)), lineLen - max - 1);
+        }
+
+        // Null-safe text, printed the way String concatenation would
+        private String text(String s){
+            return s == null ? "null" : s;
+        }
+
+        /* Convert a log type to the byte sent in a frame header
+         * param t  The log type
+         * returns  The type code
+         */
+        private byte typeCode(LogType t){
             switch(t){
                 case E:
-                    header[2] = 'E';
-                    break;
+                    return 'E';
                 case D:
-                    header[2] = 'D';
-                    break;
+                    return 'D';
                 case I:
-                    header[2] = 'I';
-                    break;
+                    return 'I';
                 case W:
-                    header[2] = 'W';
-                    break;
+                    return 'W';
                 case V:
-                    header[2] = 'V';
-                    break;
+                    return 'V';
                 case WTF:
-                    header[2] = 'T';
-                    break;
+                    return 'T';
             }
-            header[3] = msgType;
-            id.addToArray(header, 4);
-            new UINT16(msg.length()).addToArray(header, 6);
-            header[8] = ETB;
-            try {
+            return 'I';
+        }
 
-                // Send header
-                mSerialPort.write(header, 500);
+        /* Sends the v1 message in the encoder: header, wait for ACK, payload, wait for ACK. Retried
+         * with backoff as mRetryPolicy allows
+         * returns  True if the device took it or cancelled it, false if it couldn't be delivered
+         * throws InterruptedException on interrupt
+         */
+        private boolean sendMessage() throws InterruptedException{
+            byte[] frame = mEncoder.buffer();
+            RetryPolicy retry = mRetryPolicy;
+            for (int attempt = 1; ; attempt++) {
+                try {
 
-                // Process response
-                byte response = mListener.readByte(500);
-                if (response == CAN) return;
-                if (response != ACK) throw new ProtocolException(); // For code compactness
+                    // Send header
+                    write(frame, 0, mHeaderLen);
+                    mLink.sent(mEncoder.position());
 
-                // Write message if good response
-                ByteArrayOutputStream msgStream = new ByteArrayOutputStream();
-                msgStream.write(STX);
-                msgStream.write(msg.getBytes());
-                msgStream.write(ETX);
-                msgStream.write(EOT);
-                mSerialPort.write(msgStream.toByteArray(),500);
+                    // Process response
+                    byte response = mListener.readByte(500);
+                    if (response != CAN) {
+                        if (response != ACK) throw new ProtocolException(); // For code compactness
 
-                response = mListener.readByte(500);
+                        // Write message if good response
+                        write(frame, mHeaderLen, mEncoder.position() - mHeaderLen);
 
-                if(response == CAN) return;
-                else if (response != ACK) throw new ProtocolException(); // For code compactness
+                        response = mListener.readByte(500);
+                        if (response != CAN && response != ACK) throw new ProtocolException(); // For code compactness
+                    }
+                    frameDelivered();
+                    return true;
 
-            }catch(IOException ex) {
-                return;
-            }catch(ProtocolException ex){
-                // Retry send TODO: Put limit on retries
-                sendMessage(msg,t,id,msgType);
-                return;
+                }catch(IOException ex) {
+                    break;
+                }catch(ProtocolException ex){
+                    mLink.error();
+                    if (!retry.canRetry(attempt)) break;
+                    sleep(retry.delay(attempt));
+                }
             }
+            frameFailed();
+            return false;
+        }
+    }
+
+    /* Stores logged entries while no session is running to do it, so a logging thread never
+     * compresses a long message or waits on the arena or journal itself. Parks when there is
+     * nothing to store; publish() wakes it the way it wakes a session
+     */
+    private class Drainer extends Thread{
 
+        // Longest it sleeps before checking the ingest queue anyway
+        private final long IDLE_TIMEOUT_NS = 250 * 1000 * 1000L;
+
+        private final AtomicBoolean mSleeping = new AtomicBoolean(false); // True while parked
+        private volatile boolean mRunning = true;
+
+        public Drainer(){
+            super("Loggerino-Drainer");
+            setDaemon(true);
         }
 
-        /* Truncates a string to maximum length
-         * param msg    The string to truncate
-         * param maxLen The maximum allowable length for the string
-         */
-        private String truncate(String msg, int maxLen){
-            if (msg.length() <= maxLen) return msg;
-            else return msg.substring(0,maxLen);
+        // Wake the drainer if it is idle. Safe from any thread and never blocks
+        public void wake(){
+            if (mSleeping.get() && mSleeping.compareAndSet(true, false)) LockSupport.unpark(this);
+        }
+
+        // Store what is left and stop
+        public void shutdown(){
+            mRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run(){
+            while (mRunning) {
+                drainIngest();
+
+                // Raised before the last check, so a wake() in between isn't lost
+                mSleeping.set(true);
+                if (mIngest.isEmpty() && mRunning) LockSupport.parkNanos(this, IDLE_TIMEOUT_NS);
+                mSleeping.set(false);
+            }
+            drainIngest();
         }
     }
 
@@ -745,7 +2061,9 @@ public class LogKeeper {
     // Create new LogKeeper with Context
     private LogKeeper(Context ctx){
         mContext = ctx;
-        mEntries = new LinkedList<>();
+        mEntries = new EntryStore<>(STORE_CAPACITY);
+        mIngest = new MpscRingBuffer<>(INGEST_CAPACITY);
+        mDrainer.start();
 
         // From serial driver
         mManager = (UsbManager) ctx.getSystemService(Context.USB_SERVICE);
@@ -776,14 +2094,16 @@ public class LogKeeper {
                     // All this is based on stuff from the serial library
 
                     UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                    UsbSerialDriver driver = device == null ? null : mPendingDrivers.remove(device.getDeviceName());
 
                     if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if(device != null){
+                        if(driver != null && findSession(device.getDeviceName()) == null){
                             try {
 
-                                // Spin up a new IOProcessor
-                                mIO = new IOProcessor(device);
-                                mIO.start();
+                                // Spin up a new IOProcessor for this device
+                                IOProcessor io = new IOProcessor(new UsbSerialTransport(mManager, driver));
+                                addSession(io);
+                                io.start();
                             }catch(IOException ex){
                                 Log.e("IOProcessor","Exception",ex);
                             }
@@ -801,50 +2121,476 @@ public class LogKeeper {
 
             // Device disconnected
             }else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)){
-                disconnectDevice();
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (device != null) {
+                    mPendingDrivers.remove(device.getDeviceName());
+                    IOProcessor io = findSession(device.getDeviceName());
+                    if (io != null) disconnectDevice(io);
+                }
             }
         }
     };
 
-    // Handle device connected, request permissions
+    // Handle devices connected, request permissions for any without a session
     private void connectDevice(){
         List<UsbSerialDriver> availableDrivers = UsbSerialProber.getDefaultProber().findAllDrivers(mManager);
         PendingIntent permissionIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
-        mDriver = availableDrivers.get(0);
-        mManager.requestPermission(mDriver.getDevice(),permissionIntent);
+        for (UsbSerialDriver driver : availableDrivers) {
+            String name = driver.getDevice().getDeviceName();
+            IOProcessor io = findSession(name);
+            if (io != null && !io.isAlive()) removeSession(io); // died on its own, try again
+            else if (io != null || mPendingDrivers.containsKey(name)) continue;
+            mPendingDrivers.put(name, driver);
+            mManager.requestPermission(driver.getDevice(),permissionIntent);
+        }
     }
 
-    // Handle/initiate disconnect
-    private void disconnectDevice(){
-        isReady = false;
+    // Handle/initiate disconnect of one device
+    private void disconnectDevice(IOProcessor io){
         Toast.makeText(mContext,"Disconnected",Toast.LENGTH_SHORT).show();
+        stopSession(io);
+    }
+
+    // Stop a session's thread, which closes its transport
+    private void stopSession(IOProcessor io){
+        removeSession(io);
         try {
-            mIO.interrupt();
-            mIO.join(1000);
+            io.interrupt();
+            io.join(1000);
         }catch (Exception ex){
             Log.d("Serial_Close",ex.getLocalizedMessage());
         }
-        mDriver = null;
+    }
+
+    /* Send the log to a display over another transport, such as a SocketTransport to a desktop
+     * viewer. It gets a session of its own alongside any USB devices
+     * param transport  The transport, not yet opened
+     * throws IOException if it can't be opened
+     */
+    public void connect(Transport transport) throws IOException{
+        IOProcessor io = new IOProcessor(transport);
+        addSession(io);
+        io.start();
+    }
+
+    /* Close a transport passed to connect()
+     * param transport  The transport
+     */
+    public void disconnect(Transport transport){
+        for (IOProcessor io : mSessions) {
+            if (io.getTransport() == transport) stopSession(io);
+        }
+    }
+
+    // Returns the session for a device, or null
+    private IOProcessor findSession(String deviceName){
+        for (IOProcessor io : mSessions) {
+            if (io.getDeviceName().equals(deviceName)) return io;
+        }
+        return null;
+    }
+
+    // Copy-on-write, so only changes take the lock
+    private synchronized void addSession(IOProcessor io){
+        IOProcessor[] sessions = Arrays.copyOf(mSessions, mSessions.length + 1);
+        sessions[sessions.length - 1] = io;
+        mSessions = sessions;
+    }
 
+    private synchronized void removeSession(IOProcessor io){
+        ArrayList<IOProcessor> sessions = new ArrayList<>(Arrays.asList(mSessions));
+        sessions.remove(io);
+        mSessions = sessions.toArray(new IOProcessor[sessions.size()]);
     }
 
     // Destroy this object
     public void destroy(){
         mContext.unregisterReceiver(mUsbReceiver);
-        disconnectDevice();
+        mPendingDrivers.clear();
+        for (IOProcessor io : mSessions) disconnectDevice(io);
+        mDrainer.shutdown();
+        try {
+            mDrainer.join(1000); // It may still be writing to the journal
+        }catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        Journal journal = mJournal;
+        mJournal = null;
+        if (journal != null) {
+            while (!mDraining.compareAndSet(false, true)) Thread.yield();
+            try {
+                journalRepeats(journal);
+            } finally {
+                mDraining.set(false);
+            }
+            journal.close();
+        }
         instance = null;
     }
 
-    // Send log to device and add to list
+    /* Keep entries in a journal on disk, so the device can still page through them after the app
+     * restarts. Numbering carries on from the journal, so call this before logging: entries logged
+     * earlier are dropped from memory and never journaled
+     * param dir            Directory for the journal files
+     * param segmentBytes   Size of each journal file
+     * param maxBytes       Total size kept, the oldest files are deleted beyond it
+     * throws IOException if the journal can't be opened
+     */
+    public void enableJournal(File dir, int segmentBytes, long maxBytes) throws IOException{
+        Journal journal = new Journal(dir, segmentBytes, maxBytes);
+
+        // Become the drainer so nothing is stored while numbering moves on
+        while (!mDraining.compareAndSet(false, true)) Thread.yield();
+        Journal old;
+        try {
+            mEntries.restartAt(journal.nextSequence());
+            old = mJournal;
+            if (old != null) journalRepeats(old);
+            mJournal = journal;
+        } finally {
+            mDraining.set(false);
+        }
+        if (old != null) old.close();
+        drainIngest();
+    }
+
+    // Keep entries in a journal in the app's files directory, 1 MB per file and 8 MB in total
+    public void enableJournal() throws IOException{
+        enableJournal(new File(mContext.getFilesDir(), "loggerino"), 1024 * 1024, 8 * 1024 * 1024);
+    }
+
+    /* Find an entry in memory, or failing that in the journal. Package-private for the benchmarks
+     * param seq    The sequence number
+     * returns      The entry, or null if it is in neither
+     */
+    LogEntry lookup(long seq){
+        LogEntry entry = mEntries.get(seq);
+        Journal journal = mJournal;
+        if (entry != null || journal == null || seq < 0) return entry;
+        Journal.Record record = journal.read(seq);
+        return record == null ? null : new LogEntry(record);
+    }
+
+    // Returns the oldest sequence number that lookup() may find
+    long oldestSequence(){
+        Journal journal = mJournal;
+        long oldest = mEntries.oldestSequence();
+        return journal == null ? oldest : Math.min(oldest, journal.oldestSequence());
+    }
+
+    // Returns the sequence number of the newest entry stored, or EntryStore.NONE
+    long newestSequence(){
+        return mEntries.newestSequence();
+    }
+
+    /* Send log to device and add to list. Safe to call from any thread, never blocks
+     * param tag        The log tag
+     * param shortMsg   The message shown in scroll/page mode
+     * param longMsg    The message shown in expanded mode
+     * param t          The type of log
+     */
     public void sendLog(String tag, String shortMsg, String longMsg, LogType t){
-        LogEntry entry = new LogEntry(tag,shortMsg,longMsg,t);
-        entry.setID(mEntries.size());
-        mEntries.add(entry);
+        if (isAllowed(tag, t)) publish(new LogEntry(tag,shortMsg,longMsg,t));
+    }
+
+    // Same as sendLog, for callers that already checked isAllowed
+    void sendAllowedLog(String tag, String shortMsg, String longMsg, LogType t){
+        publish(new LogEntry(tag,shortMsg,longMsg,t));
+    }
+
+    /* Send a log whose text is rendered later, when it is sent or expanded
+     * param tag    The log tag
+     * param msg    The message, used for both short and long messages
+     * param t      The type of log
+     */
+    void sendLog(String tag, DeferredMessage msg, LogType t){
+        if (isAllowed(tag, t)) publish(new LogEntry(tag, msg, t));
+    }
+
+    // Same as sendLog, for callers that already checked isAllowed
+    void sendAllowedLog(String tag, DeferredMessage msg, LogType t){
+        publish(new LogEntry(tag, msg, t));
+    }
+
+    /* Check an entry against the rate limits for its tag and type, taking a token from each.
+     * Lock-free; when a limiter lets an entry through after refusing some, a summary entry is
+     * logged with the number refused
+     * param tag    The log tag
+     * param t      The type of log
+     * returns      True if the entry may be logged
+     */
+    public boolean isAllowed(String tag, LogType t){
+        RateLimiter typeLimit = mTypeLimits.get(t.ordinal());
+        RateLimiter tagLimit = tag == null || mTagLimits.isEmpty() ? null : mTagLimits.get(tag);
+        if (typeLimit == null && tagLimit == null) return true;
+
+        long now = System.nanoTime();
+        if (typeLimit != null && !typeLimit.tryAcquire(now)) return false;
+        if (tagLimit != null && !tagLimit.tryAcquire(now)) return false;
+
+        reportSuppressed(typeLimit, "level ", t.name());
+        reportSuppressed(tagLimit, "tag ", tag);
+        return true;
+    }
+
+    /* Limit the rate of entries of a type
+     * param t          The type of log
+     * param perSecond  Sustained entries per second, 0 or less removes the limit
+     * param burst      Entries allowed back to back before the rate applies
+     */
+    public void setRateLimit(LogType t, double perSecond, int burst){
+        mTypeLimits.set(t.ordinal(), perSecond > 0 ? new RateLimiter(perSecond, burst) : null);
+    }
+
+    /* Limit the rate of entries with a tag
+     * param tag        The log tag
+     * param perSecond  Sustained entries per second, 0 or less removes the limit
+     * param burst      Entries allowed back to back before the rate applies
+     */
+    public void setRateLimit(String tag, double perSecond, int burst){
+        if (perSecond > 0) mTagLimits.put(tag, new RateLimiter(perSecond, burst));
+        else mTagLimits.remove(tag);
+    }
 
-        // Send to device if serial open
-        if (isReady){
-            mIO.addEntry(entry,LogState.SCROLL);
+    /* Log how many entries a limiter refused, if it refused any since last time
+     * param limiter    The limiter, may be null
+     * param kind       What the limiter covers, "level " or "tag "
+     * param name       The level or tag; the description is only built when there is a report
+     */
+    private void reportSuppressed(RateLimiter limiter, String kind, String name){
+        if (limiter == null) return;
+        long suppressed = limiter.takeSuppressed();
+        if (suppressed > 0) {
+            publish(new LogEntry("RateLimit", suppressed + " suppressed",
+                    suppressed + " entries for " + kind + name + " were dropped by the rate limit", LogType.W));
         }
     }
 
-}
\ No newline at end of file
+    // Hand an entry to the ingest queue and make sure someone stores it
+    private void publish(LogEntry entry){
+        if (!mIngest.offer(entry)) mDropped.incrementAndGet();
+
+        // Let the IO threads know, or with no IO thread around to consume, the drainer
+        if (!wakeSessions(null)) mDrainer.wake();
+    }
+
+    /* Wake every live session
+     * param except A session not to wake, or null
+     * returns      True if any session is alive
+     */
+    private boolean wakeSessions(Thread except){
+        boolean alive = false;
+        for (IOProcessor io : mSessions) {
+            if (!io.isAlive()) continue;
+            alive = true;
+            if (io != except) io.wake();
+        }
+        return alive;
+    }
+
+    /* Limit the link speed agreed with the device at the next sync
+     * param rate   Fastest rate to use, one of 115200, 250000, 500000 or 1000000
+     */
+    public void setMaxBaudRate(int rate){
+        mMaxBaudRate = rate;
+    }
+
+    // Returns the number of devices connected
+    public int getDeviceCount(){
+        int count = 0;
+        for (IOProcessor io : mSessions) if (io.isAlive()) count++;
+        return count;
+    }
+
+    // Returns the slowest current link speed of the connected serial devices, or 0 if none
+    public int getBaudRate(){
+        int rate = 0;
+        for (IOProcessor io : mSessions) {
+            int baud = io.getBaudRate(); // 0 for links without one
+            if (io.isAlive() && baud > 0 && (rate == 0 || baud < rate)) rate = baud;
+        }
+        return rate;
+    }
+
+    // Returns the worst recent fraction of frames to or from a device that were damaged or lost, or 0
+    public double getErrorRate(){
+        double rate = 0;
+        for (IOProcessor io : mSessions) if (io.isAlive()) rate = Math.max(rate, io.getErrorRate());
+        return rate;
+    }
+
+    // Returns the lowest round-trip throughput measured when a link speed was agreed, in bytes/s, or 0
+    public long getThroughput(){
+        long throughput = 0;
+        for (IOProcessor io : mSessions) {
+            long measured = io.getThroughput(); // 0 if not measured
+            if (io.isAlive() && measured > 0 && (throughput == 0 || measured < throughput)) throughput = measured;
+        }
+        return throughput;
+    }
+
+    /* Set how failed frames and syncs are retried
+     * param maxAttempts    Attempts in total before a frame is given up on
+     * param baseDelayMs    Delay after the first failure, doubling each time
+     * param maxDelayMs     Longest delay
+     */
+    public void setRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs){
+        mRetryPolicy = new RetryPolicy(maxAttempts, baseDelayMs, maxDelayMs);
+    }
+
+    // Returns the number of frames given up on after running out of retries
+    public long getFailedFrameCount(){
+        return mFailedFrames.get();
+    }
+
+    // Returns the number of entries in frames that were given up on
+    public long getUndeliverableCount(){
+        return mUndeliverable.get();
+    }
+
+    // Returns the number of times repeated failures forced a resync
+    public long getBreakerTripCount(){
+        return mBreakerTrips.get();
+    }
+
+    // Returns the worst time an IO thread took to wake up for new work, in ns, or 0 if not connected
+    public long getMaxWakeLatency(){
+        long latency = 0;
+        for (IOProcessor io : mSessions) latency = Math.max(latency, io.getMaxWakeLatency());
+        return latency;
+    }
+
+    /* Choose what happens to scroll entries when the device can't keep up
+     * param policy The overflow policy
+     * param limit  Scroll entries queued before the policy applies
+     */
+    public void setOverflowPolicy(OverflowPolicy policy, int limit){
+        mOverflowLimit = limit;
+        mOverflowPolicy = policy;
+    }
+
+    /* Set how aggressively SAMPLE thins out entries
+     * param keepOneIn  One in this many new entries is kept while over the limit
+     */
+    public void setSampleRate(int keepOneIn){
+        mSampleRate = keepOneIn;
+    }
+
+    /* Set how many entries LATEST_SCREEN keeps
+     * param lines  Lines on the device's display
+     */
+    public void setScreenLines(int lines){
+        mScreenLines = lines;
+    }
+
+    // Returns the number of entries dropped because the ingest queue was full
+    public long getDroppedCount(){
+        return mDropped.get();
+    }
+
+    // Returns the number of entries the journal dropped because it fell behind, 0 if it isn't enabled
+    public long getJournalDroppedCount(){
+        Journal journal = mJournal;
+        return journal == null ? 0 : journal.getDroppedCount();
+    }
+
+    /* Move entries from the ingest queue into the store, assigning IDs in order. Sessions pull
+     * new entries from the store themselves, so the others are woken once there are some. Only
+     * one thread drains at a time; anyone else just leaves, the current drainer or the next one
+     * will pick their entries up.
+     */
+    private void drainIngest(){
+        if (!mDraining.compareAndSet(false, true)) return;
+        boolean stored = false;
+        try {
+            LogEntry entry;
+            while ((entry = mIngest.poll()) != null) {
+                entry.tag = poolTag(entry.tag);
+
+                // Collapse a repeat into the entry it repeats, and show the device its new count
+                if (entry.deferred == null) {
+                    int hash = repeatHash(entry.tag, entry.t, entry.shortMsg, entry.longMsg);
+                    LogEntry repeated = findRepeat(entry, hash);
+                    if (repeated != null) {
+                        repeated.repeat(entry.getLogTime());
+                        for (IOProcessor io : mSessions) io.repeated(repeated);
+                        stored = true;
+                        continue;
+                    }
+                    remember(entry, hash);
+                }
+
+                Journal journal = mJournal;
+                entry.stash(journal != null);
+                entry.setSequence(mEntries.add(entry));
+                if (journal != null) journal.append(entry);
+                stored = true;
+            }
+        } finally {
+            mDraining.set(false);
+        }
+        if (stored) wakeSessions(Thread.currentThread());
+    }
+
+    // Same tag String for every entry with that tag, up to MAX_POOLED_TAGS tags. Drainer only
+    private String poolTag(String tag){
+        if (tag == null) return null;
+        String pooled = mTagPool.get(tag);
+        if (pooled != null) return pooled;
+        if (mTagPool.size() < MAX_POOLED_TAGS) mTagPool.put(tag, tag);
+        return tag;
+    }
+
+    // Hash of everything that makes two entries repeats of each other
+    private static int repeatHash(String tag, LogType t, String shortMsg, String longMsg){
+        int h = t.ordinal();
+        h = 31 * h + (tag == null ? 0 : tag.hashCode());
+        h = 31 * h + (shortMsg == null ? 0 : shortMsg.hashCode());
+        h = 31 * h + (longMsg == null ? 0 : longMsg.hashCode());
+        return h;
+    }
+
+    /* Look for a recent entry this one repeats. Drainer only
+     * param entry  The new entry, not yet stored
+     * param hash   Its repeatHash()
+     * returns      The entry it repeats, or null
+     */
+    private LogEntry findRepeat(LogEntry entry, int hash){
+        for (int i = 0; i < REPEAT_WINDOW; i++) {
+            LogEntry recent = mRecent[i];
+            if (recent == null || mRecentHash[i] != hash || recent.t != entry.t) continue;
+            if (recent.tag != entry.tag && (recent.tag == null || !recent.tag.equals(entry.tag))) continue;
+            if (equal(mRecentShort[i], entry.shortMsg) && equal(mRecentLong[i], entry.longMsg)) return recent;
+        }
+        return null;
+    }
+
+    /* Keep an entry's original text for findRepeat(), replacing the oldest. Nothing more can be
+     * collapsed into that one, so its repeat count is final and goes to the journal. Drainer only
+     * param entry  The new entry
+     * param hash   Its repeatHash()
+     */
+    private void remember(LogEntry entry, int hash){
+        int i = mRecentNext;
+        LogEntry oldest = mRecent[i];
+        Journal journal = mJournal;
+        if (oldest != null && oldest.getRepeats() > 1 && journal != null) journal.repeated(oldest);
+        mRecent[i] = entry;
+        mRecentShort[i] = entry.shortMsg;
+        mRecentLong[i] = entry.longMsg;
+        mRecentHash[i] = hash;
+        mRecentNext = (i + 1) % REPEAT_WINDOW;
+    }
+
+    // Send the repeat counts of recent entries to the journal, before it closes. Drainer only
+    private void journalRepeats(Journal journal){
+        for (LogEntry recent : mRecent) {
+            if (recent != null && recent.getRepeats() > 1) journal.repeated(recent);
+        }
+    }
+
+    private static boolean equal(String a, String b){
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
@@ -3,6 +3,11 @@ package com.pandorica.loggerino;
 import android.content.Context;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Created by dgcrouse on 2/20/15.
  */
@@ -20,16 +25,322 @@ public class Logger {
     // Handles Arduino IO
     private LogKeeper keeper;
 
+    // Supplies a log message when it is needed, on the IO thread rather than the caller's
+    public interface MessageSupplier{
+        String get();
+    }
+
+    // Should rate limits also stop entries going to Logcat?
+    private volatile boolean limitLogcat = false;
+
+    // Are entries passed on to Logcat at all?
+    private volatile boolean forwardToLogcat = true;
+
+    // Minimum levels, replaced as a whole when changed so logging never locks
+    private volatile LevelFilter filter = LevelFilter.ALL;
+
+    // Does the work of logging on a background thread in async mode, null otherwise
+    private volatile Forwarder forwarder = null;
+
+    // A log call waiting for the async forwarder
+    private static class Record{
+        final LogKeeper.LogType t;
+        final String tag;
+        final String shortMsg;
+        final String longMsg;
+        final Exception ex;
+        final DeferredMessage msg;  // Set instead of the messages for deferred logs
+
+        Record(LogKeeper.LogType t, String tag, String shortMsg, String longMsg, Exception ex, DeferredMessage msg){
+            this.t = t;
+            this.tag = tag;
+            this.shortMsg = shortMsg;
+            this.longMsg = longMsg;
+            this.ex = ex;
+            this.msg = msg;
+        }
+    }
+
+    // Background thread that forwards queued log calls to Logcat and the LogKeeper in batches
+    private class Forwarder extends Thread{
+
+        private static final int CAPACITY = 8192;       // Records queued before callers log synchronously
+        private static final int BATCH = 64;            // Records handled between checks for flush waiters
+        private static final long IDLE_NS = 100 * 1000 * 1000L; // Longest sleep with nothing queued
+
+        private final MpscRingBuffer<Record> mQueue = new MpscRingBuffer<>(CAPACITY);
+        private final AtomicBoolean mSleeping = new AtomicBoolean(false);
+        private final AtomicInteger mOffering = new AtomicInteger();    // Callers inside offer()
+        private final AtomicLong mPublished = new AtomicLong();    // Records queued so far
+        private volatile long mProcessed = 0;                      // Records handled so far
+        private final Object mFlushLock = new Object();            // Flush waiters wait on this
+        private volatile int mWaiters = 0;                         // Threads waiting in flush()
+        private volatile boolean mAccepting = true;                 // False once shutdown() is called
+
+        public Forwarder(){
+            super("Loggerino-Forwarder");
+            setDaemon(true);
+        }
+
+        /* Queue a record, never blocks. A caller that read the forwarder just before it was shut
+         * down is either turned away or counted in mOffering, which the last drain waits for
+         * param record The record
+         * returns      False if the queue is full or shut down, and the caller should log it itself
+         */
+        public boolean offer(Record record){
+            mOffering.incrementAndGet();
+            try {
+                if (!mAccepting || !mQueue.offer(record)) return false;
+                mPublished.incrementAndGet();
+                if (mSleeping.get() && mSleeping.compareAndSet(true, false)) LockSupport.unpark(this);
+                return true;
+            } finally {
+                mOffering.decrementAndGet();
+            }
+        }
+
+        /* Wait until every record queued before this call has been handled
+         * param timeout    Longest to wait, in ms
+         * returns          True if everything was handled in time
+         */
+        public boolean flush(long timeout) throws InterruptedException{
+            long target = mPublished.get();
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (mFlushLock) {
+                mWaiters++;
+                try {
+                    while (mProcessed < target && isAlive()) {
+                        if (mSleeping.compareAndSet(true, false)) LockSupport.unpark(this);
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) return false;
+                        mFlushLock.wait(Math.min(remaining, 10));
+                    }
+                } finally {
+                    mWaiters--;
+                }
+            }
+            return mProcessed >= target;
+        }
+
+        // Stop taking records, and stop running once everything queued is handled
+        public void shutdown(){
+            mAccepting = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run(){
+            while (true) {
+                int handled = 0;
+                Record record;
+                while (handled < BATCH && (record = mQueue.poll()) != null) {
+                    try {
+                        deliver(record.t, record.tag, record.shortMsg, record.longMsg, record.ex, record.msg, true);
+                    } catch (RuntimeException ex) {
+                        Log.e("Loggerino", "Forwarding failed", ex);
+                    }
+                    handled++;
+                }
+                mProcessed += handled;
+
+                if (mWaiters > 0) {
+                    synchronized (mFlushLock) {
+                        mFlushLock.notifyAll();
+                    }
+                }
+                if (handled > 0) continue;
+                if (!mAccepting) {
+
+                    // Done once no caller can still be adding, and what they added is handled
+                    if (mOffering.get() == 0 && mQueue.isEmpty()) return;
+                    Thread.yield();
+                    continue;
+                }
+
+                // Nothing queued, sleep until offer() or shutdown() wakes us
+                mSleeping.set(true);
+                if (mQueue.isEmpty() && mAccepting) LockSupport.parkNanos(this, IDLE_NS);
+                mSleeping.set(false);
+            }
+        }
+    }
+
     private Logger(Context ctx){
         keeper = LogKeeper.getInstance(ctx);
     }
 
     // Destroy singleton instance
     public void destroy(){
+        setAsync(false);
         keeper.destroy();
         instance = null;
     }
 
+    /* Turn async mode on or off. In async mode a log call only queues a record; a background
+     * thread forwards it to Logcat and the device. Turning it off flushes what is queued, waiting
+     * up to a second; anything left is still forwarded, just after this returns
+     * param async  True for async mode
+     * returns      False if the queue wasn't flushed in time
+     */
+    public synchronized boolean setAsync(boolean async){
+        if (async && forwarder == null) {
+            Forwarder f = new Forwarder();
+            f.start();
+            forwarder = f;
+        } else if (!async && forwarder != null) {
+            Forwarder f = forwarder;
+            forwarder = null; // new calls go straight through from here
+            f.shutdown();
+            try {
+                f.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (f.isAlive()) {
+                Log.w("Loggerino", "Forwarder still busy after 1s, the rest of its queue follows later");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Wait until every call made before this one has reached Logcat and the device queue. Returns
+     * straight away when not in async mode
+     * param timeout    Longest to wait, in ms
+     * returns          True if everything was forwarded in time
+     * throws InterruptedException when interrupted while waiting
+     */
+    public boolean flush(long timeout) throws InterruptedException{
+        Forwarder f = forwarder;
+        return f == null || f.flush(timeout);
+    }
+
+    /* Choose whether rate limits set on the LogKeeper also apply to Logcat. Off by default, so
+     * Logcat gets everything and only the device is limited
+     * param limit  True to drop rate-limited entries from Logcat as well
+     */
+    public void setLimitLogcat(boolean limit){
+        limitLogcat = limit;
+    }
+
+    /* Choose whether entries are passed on to Logcat. Deferred logs only go to Logcat in async
+     * mode, where the forwarder renders them, so they never cost the caller the formatting
+     * param forward    False to send entries to the device only
+     */
+    public void setForwardToLogcat(boolean forward){
+        forwardToLogcat = forward;
+    }
+
+    /* Set the least severe type that gets logged, for tags without their own level
+     * param level  The minimum level, V logs everything
+     */
+    public synchronized void setMinLevel(LogKeeper.LogType level){
+        filter = filter.withMinLevel(level);
+    }
+
+    /* Set the least severe type that gets logged for one tag
+     * param tag    The log tag
+     * param level  The minimum level, null to go back to the default
+     */
+    public synchronized void setMinLevel(String tag, LogKeeper.LogType level){
+        filter = filter.withMinLevel(tag, level);
+    }
+
+    /* Check whether an entry would be logged, e.g. before building an expensive message
+     * param tag    The log tag
+     * param t      The type of log
+     * returns      True if it passes the level filter
+     */
+    public boolean isLoggable(String tag, LogKeeper.LogType t){
+        return filter.isLoggable(tag, t);
+    }
+
+    /* Log an entry, or queue it for the forwarder in async mode
+     * param t          The type of log
+     * param tag        The log tag
+     * param shortMsg   The message shown in scroll/page mode, and in Logcat with an Exception
+     * param longMsg    The message shown in Logcat and expanded mode, ignored with an Exception
+     * param ex         Attached Exception, or null
+     */
+    private void log(LogKeeper.LogType t, String tag, String shortMsg, String longMsg, Exception ex){
+        if (!filter.isLoggable(tag, t)) return; // before anything is allocated
+
+        Forwarder f = forwarder;
+        if (f != null && f.offer(new Record(t, tag, shortMsg, longMsg, ex, null))) return;
+        deliver(t, tag, shortMsg, longMsg, ex, null, true);
+    }
+
+    /* Log a deferred entry, or queue it for the forwarder in async mode. Otherwise it only goes
+     * to the device, which renders it on the IO thread; it would have to be rendered here for
+     * Logcat. In async mode with the queue full it is rendered here, as other logs are sent here
+     * param t      The type of log
+     * param tag    The log tag
+     * param msg    The captured message
+     */
+    private void log(LogKeeper.LogType t, String tag, DeferredMessage msg){
+        Forwarder f = forwarder;
+        if (f != null && f.offer(new Record(t, tag, null, null, null, msg))) return;
+        deliver(t, tag, null, null, null, msg, f != null);
+    }
+
+    /* Forward an entry to Logcat and the device. A deferred message rendered here for Logcat
+     * shares the rendered text with the device copy
+     * param t          The type of log
+     * param tag        The log tag
+     * param shortMsg   The message shown in scroll/page mode, and in Logcat with an Exception
+     * param longMsg    The message shown in Logcat and expanded mode, ignored with an Exception
+     * param ex         Attached Exception, or null
+     * param msg        Deferred message used instead of shortMsg and longMsg, or null
+     * param render     False to send a deferred message to the device only
+     */
+    private void deliver(LogKeeper.LogType t, String tag, String shortMsg, String longMsg, Exception ex, DeferredMessage msg,
+                         boolean render){
+        if (ex != null) longMsg = ex.getLocalizedMessage();
+        if (limitLogcat && !keeper.isAllowed(tag, t)) return;
+
+        if (forwardToLogcat) {
+            if (msg == null) logcat(t, tag, ex == null ? longMsg : shortMsg, ex);
+            else if (render) logcat(t, tag, msg.toString(), null);
+        }
+
+        if (msg != null) {
+            if (limitLogcat) keeper.sendAllowedLog(tag, msg, t);
+            else keeper.sendLog(tag, msg, t);
+        } else {
+            if (limitLogcat) keeper.sendAllowedLog(tag, shortMsg, longMsg, t);
+            else keeper.sendLog(tag, shortMsg, longMsg, t);
+        }
+    }
+
+    /* Write to Logcat
+     * param t      The type of log
+     * param tag    The log tag
+     * param msg    The message
+     * param ex     Attached Exception, or null
+     */
+    private void logcat(LogKeeper.LogType t, String tag, String msg, Exception ex){
+        switch (t){
+            case D:
+                if (ex == null) Log.d(tag, msg); else Log.d(tag, msg, ex);
+                break;
+            case E:
+                if (ex == null) Log.e(tag, msg); else Log.e(tag, msg, ex);
+                break;
+            case I:
+                if (ex == null) Log.i(tag, msg); else Log.i(tag, msg, ex);
+                break;
+            case W:
+                if (ex == null) Log.w(tag, msg); else Log.w(tag, msg, ex);
+                break;
+            case V:
+                if (ex == null) Log.v(tag, msg); else Log.v(tag, msg, ex);
+                break;
+            case WTF:
+                if (ex == null) Log.wtf(tag, msg); else Log.wtf(tag, msg, ex);
+                break;
+        }
+    }
+
     /* Log functions - tag is the log tag. shortMsg is the message (keep it 10 chars or less generally
      * that is displayed in scroll/page mode. longMsg is the long message to be displayed in the
      * expanded view.
@@ -40,8 +351,7 @@ public class Logger {
     // Debug logs
 
     public void d(String tag, String shortMsg, String longMsg){
-        Log.d(tag, longMsg);
-        keeper.sendLog(tag,shortMsg,longMsg, LogKeeper.LogType.D);
+        log(LogKeeper.LogType.D, tag, shortMsg, longMsg, null);
     }
 
     public void d(String tag, String longMsg){
@@ -49,8 +359,7 @@ public class Logger {
     }
 
     public void d(String tag, String shortMsg, Exception ex){
-        Log.d(tag,shortMsg,ex);
-        keeper.sendLog(tag,shortMsg,ex.getLocalizedMessage(),LogKeeper.LogType.D);
+        log(LogKeeper.LogType.D, tag, shortMsg, null, ex);
     }
 
     public void d(String tag, Exception ex){
@@ -60,13 +369,11 @@ public class Logger {
 
     // Exception logs
     public void e(String tag, String shortMsg, String longMsg){
-        Log.e(tag,longMsg);
-        keeper.sendLog(tag, shortMsg, longMsg,LogKeeper.LogType.E);
+        log(LogKeeper.LogType.E, tag, shortMsg, longMsg, null);
     }
 
     public void e(String tag, String shortMsg, Exception ex){
-        Log.e(tag,shortMsg,ex);
-        keeper.sendLog(tag,shortMsg,ex.getLocalizedMessage(),LogKeeper.LogType.E);
+        log(LogKeeper.LogType.E, tag, shortMsg, null, ex);
     }
 
     public void e(String tag, Exception ex){
@@ -80,16 +387,14 @@ public class Logger {
 
     // Info logs
     public void i(String tag, String shortMsg, String longMsg){
-        Log.i(tag,longMsg);
-        keeper.sendLog(tag,shortMsg,longMsg,LogKeeper.LogType.I);
+        log(LogKeeper.LogType.I, tag, shortMsg, longMsg, null);
     }
     public void i(String tag, String longMsg){
         i(tag,longMsg,longMsg);
     }
 
     public void i(String tag, String shortMsg, Exception ex){
-        Log.i(tag,shortMsg,ex);
-        keeper.sendLog(tag,shortMsg,ex.getLocalizedMessage(),LogKeeper.LogType.I);
+        log(LogKeeper.LogType.I, tag, shortMsg, null, ex);
     }
 
     public void i(String tag, Exception ex){
@@ -99,8 +404,7 @@ public class Logger {
 
     // Warn logs
     public void w(String tag, String shortMsg, String longMsg){
-        Log.w(tag,longMsg);
-        keeper.sendLog(tag,shortMsg,longMsg,LogKeeper.LogType.W);
+        log(LogKeeper.LogType.W, tag, shortMsg, longMsg, null);
     }
 
     public void w(String tag, String longMsg){
@@ -108,8 +412,7 @@ public class Logger {
     }
 
     public void w(String tag, String shortMsg, Exception ex){
-        Log.w(tag,shortMsg,ex);
-        keeper.sendLog(tag,shortMsg,ex.getLocalizedMessage(),LogKeeper.LogType.W);
+        log(LogKeeper.LogType.W, tag, shortMsg, null, ex);
     }
 
     public void w(String tag, Exception ex){
@@ -118,8 +421,7 @@ public class Logger {
 
     // Verbose logs
     public void v(String tag, String shortMsg, String longMsg){
-        Log.v(tag,longMsg);
-        keeper.sendLog(tag,shortMsg,longMsg,LogKeeper.LogType.V);
+        log(LogKeeper.LogType.V, tag, shortMsg, longMsg, null);
     }
 
     public void v(String tag, String longMsg){
@@ -127,8 +429,7 @@ public class Logger {
     }
 
     public void v(String tag, String shortMsg, Exception ex){
-        Log.v(tag,shortMsg,ex);
-        keeper.sendLog(tag,shortMsg,ex.getLocalizedMessage(),LogKeeper.LogType.V);
+        log(LogKeeper.LogType.V, tag, shortMsg, null, ex);
     }
 
     public void v(String tag, Exception ex){
@@ -138,8 +439,7 @@ public class Logger {
 
     // WTF logs
     public void wtf(String tag, String shortMsg, String longMsg){
-        Log.wtf(tag,longMsg);
-        keeper.sendLog(tag,shortMsg,longMsg,LogKeeper.LogType.WTF);
+        log(LogKeeper.LogType.WTF, tag, shortMsg, longMsg, null);
     }
 
     public void wtf(String tag, String longMsg){
@@ -147,13 +447,45 @@ public class Logger {
     }
 
     public void wtf(String tag, String shortMsg, Exception ex){
-        Log.wtf(tag,shortMsg,ex);
-        keeper.sendLog(tag,shortMsg,ex.getLocalizedMessage(),LogKeeper.LogType.WTF);
+        log(LogKeeper.LogType.WTF, tag, shortMsg, null, ex);
     }
 
     public void wtf(String tag, Exception ex){
         v(tag,ex.getCause().getClass().getName(),ex);
     }
 
-}
 
+    /* Deferred logs - the message is a String.format() format and its arguments, captured as-is and
+     * only rendered when the entry is actually sent to the device or expanded. They only reach
+     * Logcat in async mode, rendered by the forwarder, so the caller never pays for the formatting.
+     * Filtered entries never capture anything. The long and double overloads keep their arguments
+     * unboxed. A MessageSupplier is called at the same point, on the IO or forwarder thread, so it
+     * must be safe to call from there.
+     */
+
+    public void logf(LogKeeper.LogType t, String tag, String format, Object... args){
+        if (!filter.isLoggable(tag, t)) return;
+        log(t, tag, DeferredMessage.of(format, args));
+    }
+
+    public void logf(LogKeeper.LogType t, String tag, String format, long arg){
+        if (!filter.isLoggable(tag, t)) return;
+        log(t, tag, DeferredMessage.of(format, arg));
+    }
+
+    public void logf(LogKeeper.LogType t, String tag, String format, long arg0, long arg1){
+        if (!filter.isLoggable(tag, t)) return;
+        log(t, tag, DeferredMessage.of(format, arg0, arg1));
+    }
+
+    public void logf(LogKeeper.LogType t, String tag, String format, double arg){
+        if (!filter.isLoggable(tag, t)) return;
+        log(t, tag, DeferredMessage.of(format, arg));
+    }
+
+    public void log(LogKeeper.LogType t, String tag, MessageSupplier supplier){
+        if (!filter.isLoggable(tag, t)) return;
+        log(t, tag, DeferredMessage.of(supplier));
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.pandorica.loggerino;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Off-heap store for long message text, compressed in blocks
+ *
+ * Text is appended as UTF-8 to an on-heap staging block. A full staging block is deflated into a
+ * direct ByteBuffer used as a ring; once the ring is full the oldest blocks are overwritten and
+ * their text is gone. A message is found again by the handle put() returned (block number and
+ * offset) plus its length in bytes, so the only heap cost per message is those two numbers.
+ * Reading a compressed block inflates it whole, and the last block inflated is kept for the next
+ * read. All methods are synchronized.
+ */
+class LongMessageArena {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // A sealed block in the ring
+    private static class Block{
+        final long id;          // Block number, consecutive
+        final int pos;          // Position in the ring
+        final int length;       // Bytes in the ring
+        final int rawLength;    // Bytes of text
+        final boolean deflated; // False if deflating didn't make it smaller
+
+        Block(long id, int pos, int length, int rawLength, boolean deflated){
+            this.id = id;
+            this.pos = pos;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.deflated = deflated;
+        }
+    }
+
+    private final ByteBuffer mRing;                             // Sealed blocks, off heap
+    private final int mBlockSize;                               // Staged bytes before a block is sealed
+    private final ArrayList<Block> mBlocks = new ArrayList<>(); // Blocks in the ring, oldest first
+    private int mWrite = 0;                                     // Where the next block goes in the ring
+
+    private byte[] mStaging;                                    // Text of the block being filled
+    private int mStagingLength = 0;
+    private long mStagingId = 0;                                // Number of the block being filled
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    private byte[] mScratch;                                    // Deflated bytes on their way in or out
+    private long mInflatedId = -1;                              // Block in mInflated
+    private byte[] mInflated = new byte[0];
+
+    /* Constructor
+     * param capacity   Size of the off-heap ring in bytes
+     * param blockSize  Bytes of text per compressed block
+     */
+    public LongMessageArena(int capacity, int blockSize){
+        mRing = ByteBuffer.allocateDirect(capacity);
+        mBlockSize = blockSize;
+        mStaging = new byte[blockSize];
+        mScratch = new byte[blockSize];
+    }
+
+    /* Store text
+     * param text   UTF-8 text
+     * returns      Handle to pass to get() along with text.length
+     */
+    public synchronized long put(byte[] text){
+        if (mStagingLength > 0 && mStagingLength + text.length > mBlockSize) seal();
+        if (mStagingLength + text.length > mStaging.length) mStaging = Arrays.copyOf(mStaging, mStagingLength + text.length);
+        System.arraycopy(text, 0, mStaging, mStagingLength, text.length);
+        long handle = (mStagingId << 32) | mStagingLength;
+        mStagingLength += text.length;
+        return handle;
+    }
+
+    /* Read text back, inflating its block if needed
+     * param handle The handle from put()
+     * param length Length of the text in bytes
+     * returns      The text, or null if its block was overwritten
+     */
+    public synchronized String get(long handle, int length){
+        long id = handle >>> 32;
+        byte[] raw = id == mStagingId ? mStaging : inflate(id);
+        return raw == null ? null : new String(raw, (int) handle, length, UTF8);
+    }
+
+    /* Get the text of a sealed block
+     * param id The block number
+     * returns  The text, or null if the block was overwritten
+     */
+    private byte[] inflate(long id){
+        if (id == mInflatedId) return mInflated;
+        Block block = find(id);
+        if (block == null) return null;
+
+        mInflatedId = -1;
+        byte[] raw = mInflated.length >= block.rawLength ? mInflated : new byte[block.rawLength];
+        ByteBuffer src = mRing.duplicate();
+        src.position(block.pos);
+        if (!block.deflated) {
+            src.get(raw, 0, block.rawLength);
+        } else {
+            if (mScratch.length < block.length) mScratch = new byte[block.length];
+            src.get(mScratch, 0, block.length);
+            mInflater.reset();
+            mInflater.setInput(mScratch, 0, block.length);
+            try {
+                int n = 0;
+                while (n < block.rawLength && !mInflater.finished()) n += mInflater.inflate(raw, n, block.rawLength - n);
+            } catch (DataFormatException ex) {
+                return null;
+            }
+        }
+        mInflatedId = id;
+        mInflated = raw;
+        return raw;
+    }
+
+    // Binary search for a block by number, null if it isn't in the ring
+    private Block find(long id){
+        int lo = 0, hi = mBlocks.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Block block = mBlocks.get(mid);
+            if (block.id == id) return block;
+            if (block.id < id) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return null;
+    }
+
+    // Compress the staging block into the ring, overwriting the oldest blocks as needed
+    private void seal(){
+        int rawLength = mStagingLength;
+        mDeflater.reset();
+        mDeflater.setInput(mStaging, 0, rawLength);
+        mDeflater.finish();
+        int n = 0;
+        while (!mDeflater.finished() && n < rawLength) {
+            if (n == mScratch.length) mScratch = Arrays.copyOf(mScratch, n * 2);
+            n += mDeflater.deflate(mScratch, n, mScratch.length - n);
+        }
+        boolean deflated = mDeflater.finished() && n < rawLength;
+        byte[] data = deflated ? mScratch : mStaging;
+        int length = deflated ? n : rawLength;
+
+        if (length <= mRing.capacity()) {
+
+            // Wrapping round: whatever is left past the write position is the oldest
+            if (mWrite + length > mRing.capacity()) {
+                while (!mBlocks.isEmpty() && mBlocks.get(0).pos >= mWrite) mBlocks.remove(0);
+                mWrite = 0;
+            }
+            while (!mBlocks.isEmpty() && mBlocks.get(0).pos < mWrite + length
+                    && mBlocks.get(0).pos + mBlocks.get(0).length > mWrite) mBlocks.remove(0);
+
+            ByteBuffer dst = mRing.duplicate();
+            dst.position(mWrite);
+            dst.put(data, 0, length);
+            mBlocks.add(new Block(mStagingId, mWrite, length, rawLength, deflated));
+            mWrite += length;
+        }
+
+        mStagingId++;
+        mStagingLength = 0;
+        if (mStaging.length > mBlockSize) mStaging = new byte[mBlockSize];
+    }
+}
@@ -0,0 +1,133 @@
+package com.pandorica.loggerino;
+
+import java.io.IOException;
+
+/* In-memory transport for exercising the protocol without hardware
+ *
+ * Whatever the session writes is buffered for the peer, a test or a simulated device, to read();
+ * whatever the peer send()s goes straight to the session. The peer side must be driven from a
+ * single thread. Nothing is ever lost or corrupted on the way, and a write that finds the buffer
+ * full waits for the peer to make room, up to its timeout.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final ByteRingBuffer mToPeer;   // Written by the session, read by the peer
+    private volatile Listener mListener;
+    private volatile boolean mClosed = false;
+
+    /* Constructor
+     * param capacity   Bytes the session may write ahead of the peer reading them
+     */
+    public LoopbackTransport(int capacity){
+        mToPeer = new ByteRingBuffer(capacity);
+    }
+
+    // Constructor with room for 16 KB
+    public LoopbackTransport(){
+        this(16384);
+    }
+
+    @Override
+    public void open(Listener listener){
+        mListener = listener;
+    }
+
+    @Override
+    public int write(byte[] buf, int offset, int len, int timeout) throws IOException{
+        long deadline = System.currentTimeMillis() + timeout;
+        int written = 0;
+        synchronized (this) {
+            while (written < len) {
+                if (mClosed) throw new IOException("Closed");
+                int n = mToPeer.write(buf, offset + written, len - written);
+                written += n;
+                notifyAll();
+                if (n == 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    try {
+                        wait(remaining);
+                    }catch (InterruptedException ex){
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void write(byte[][] bufs, int[] lengths, int count, int timeout) throws IOException{
+        for (int i = 0; i < count; i++) {
+            if (write(bufs[i], 0, lengths[i], timeout) < lengths[i]) throw new IOException("Peer isn't reading");
+        }
+    }
+
+    @Override
+    public boolean hasBaudRate(){
+        return false;
+    }
+
+    @Override
+    public void setBaudRate(int rate){
+        // No such thing
+    }
+
+    @Override
+    public void purgeInput(){
+        // Nothing is held below the listener
+    }
+
+    @Override
+    public String getName(){
+        return "loopback@" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    @Override
+    public synchronized void close(){
+        mClosed = true;
+        notifyAll();
+    }
+
+    /* Read what the session wrote. Peer only
+     * param dst        Array to read into
+     * param offset     Where in dst to start
+     * param len        Most bytes to read
+     * param timeout    Longest to wait for the first byte, in ms
+     * returns          Bytes read, 0 on timeout, or -1 once closed and drained
+     * throws InterruptedException on interrupt
+     */
+    public int read(byte[] dst, int offset, int len, long timeout) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (mToPeer.available() == 0) {
+                if (mClosed) return -1;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return 0;
+                wait(remaining);
+            }
+            int n = Math.min(len, mToPeer.available());
+            mToPeer.read(dst, offset, n);
+            notifyAll(); // Room for a waiting write
+            return n;
+        }
+    }
+
+    /* Send bytes to the session. Peer only
+     * param src    The bytes
+     * param offset Where they start
+     * param len    How many
+     */
+    public void send(byte[] src, int offset, int len){
+        Listener listener = mListener;
+        if (listener != null && !mClosed) listener.onNewData(src, offset, len);
+    }
+
+    // Drop the connection from the peer's end, as if the cable were pulled
+    public void hangUp(){
+        Listener listener = mListener;
+        close();
+        if (listener != null) listener.onRunError(new IOException("Peer hung up"));
+    }
+}
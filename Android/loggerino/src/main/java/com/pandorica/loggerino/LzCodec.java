@@ -0,0 +1,129 @@
+package com.pandorica.loggerino;
+
+import java.util.Arrays;
+
+/* Byte-oriented LZ compression simple enough for the Arduino to undo
+ *
+ * The compressed stream is a series of tokens, each starting with a control byte:
+ *
+ *   0x00-0x7f  Literal run: (control + 1) bytes follow and are copied out as they are
+ *   0x80-0xff  Match: copy (control - 0x80 + 4) bytes starting <distance 16-bit> bytes back in the
+ *              output. The copy may overlap what it is writing, so it goes byte by byte
+ *
+ * Decoding needs no memory beyond the output itself, which the device keeps anyway to display an
+ * expanded message. Matches are found greedily with a hash table of 4-byte sequences. Not thread
+ * safe; each IOProcessor owns one.
+ */
+class LzCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_MATCH = 0x7f + MIN_MATCH;
+    private static final int MAX_LITERALS = 0x80;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int HASH_BITS = 12;
+
+    private final int[] mTable = new int[1 << HASH_BITS]; // Last position seen for each hash
+
+    /* Compress bytes
+     * param src    Bytes to compress
+     * param off    Where they start
+     * param len    How many
+     * param dst    Buffer for the compressed stream
+     * param dstOff Where to start writing
+     * param dstMax Most bytes to write
+     * returns      Bytes written, or -1 if the stream wouldn't fit in dstMax
+     */
+    public int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstMax){
+        Arrays.fill(mTable, -1);
+        int end = off + len;
+        int out = dstOff;
+        int limit = dstOff + dstMax;
+        int literals = off;
+        int i = off;
+
+        while (i + MIN_MATCH <= end) {
+            int h = hash(src, i);
+            int candidate = mTable[h];
+            mTable[h] = i;
+            if (candidate < 0 || i - candidate > MAX_DISTANCE || !same4(src, candidate, i)) {
+                i++;
+                continue;
+            }
+
+            int length = MIN_MATCH;
+            while (i + length < end && length < MAX_MATCH && src[candidate + length] == src[i + length]) length++;
+
+            out = putLiterals(src, literals, i, dst, out, limit);
+            if (out < 0 || out + 3 > limit) return -1;
+            dst[out++] = (byte) (0x80 | (length - MIN_MATCH));
+            dst[out++] = (byte) ((i - candidate) & 0xff);
+            dst[out++] = (byte) ((i - candidate) >>> 8);
+
+            // Remember the positions inside the match too, they make later matches likelier
+            int matchEnd = i + length;
+            for (int j = i + 1; j < matchEnd && j + MIN_MATCH <= end; j++) mTable[hash(src, j)] = j;
+            i = matchEnd;
+            literals = i;
+        }
+
+        out = putLiterals(src, literals, end, dst, out, limit);
+        return out < 0 ? -1 : out - dstOff;
+    }
+
+    /* Decompress a stream written by compress()
+     * param src    The compressed stream
+     * param off    Where it starts
+     * param len    Its length
+     * param dst    Buffer for the output, already sized for it
+     * param dstOff Where to start writing
+     * returns      Bytes written
+     * throws IllegalArgumentException if the stream is corrupt or doesn't fit
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst, int dstOff){
+        int end = off + len;
+        int out = dstOff;
+        int i = off;
+        while (i < end) {
+            int control = src[i++] & 0xff;
+            if (control < 0x80) {
+                int count = control + 1;
+                if (i + count > end || out + count > dst.length) throw new IllegalArgumentException("Bad literal run");
+                System.arraycopy(src, i, dst, out, count);
+                i += count;
+                out += count;
+            } else {
+                if (i + 2 > end) throw new IllegalArgumentException("Truncated match");
+                int count = control - 0x80 + MIN_MATCH;
+                int distance = (src[i] & 0xff) | ((src[i + 1] & 0xff) << 8);
+                i += 2;
+                if (distance == 0 || out - distance < dstOff || out + count > dst.length) {
+                    throw new IllegalArgumentException("Bad match");
+                }
+                for (int k = 0; k < count; k++, out++) dst[out] = dst[out - distance];
+            }
+        }
+        return out - dstOff;
+    }
+
+    // Write src[from, to) as literal runs, returns the new output position or -1 if it won't fit
+    private static int putLiterals(byte[] src, int from, int to, byte[] dst, int out, int limit){
+        while (from < to) {
+            int count = Math.min(to - from, MAX_LITERALS);
+            if (out + 1 + count > limit) return -1;
+            dst[out++] = (byte) (count - 1);
+            System.arraycopy(src, from, dst, out, count);
+            out += count;
+            from += count;
+        }
+        return out;
+    }
+
+    private static int hash(byte[] b, int i){
+        int v = (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static boolean same4(byte[] b, int x, int y){
+        return b[x] == b[y] && b[x + 1] == b[y + 1] && b[x + 2] == b[y + 2] && b[x + 3] == b[y + 3];
+    }
+}
@@ -0,0 +1,78 @@
+package com.pandorica.loggerino;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Bounded lock-free multi-producer, single-consumer queue
+ *
+ * Producers claim a slot by CAS on the tail counter, store the element and then publish it by
+ * advancing the slot's sequence number. The consumer only ever reads slots whose sequence says
+ * they are published, so no producer waits on another producer or on the consumer. When the ring
+ * is full offer() fails instead of blocking.
+ *
+ * Only one thread may call poll() at a time.
+ */
+class MpscRingBuffer<T> {
+
+    private final int mMask;                            // capacity - 1, capacity is a power of two
+    private final AtomicReferenceArray<T> mItems;       // Slot contents
+    private final AtomicLongArray mSequence;            // Per-slot sequence, says who owns the slot
+    private final AtomicLong mTail = new AtomicLong();  // Next position a producer will claim
+    private long mHead = 0;                             // Next position to consume, consumer only
+
+    /* Constructor
+     * param capacity   Minimum number of slots, rounded up to a power of two
+     */
+    public MpscRingBuffer(int capacity){
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mMask = size - 1;
+        mItems = new AtomicReferenceArray<>(size);
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) mSequence.set(i, i);
+    }
+
+    /* Add an element, never blocks
+     * param item   The element to add, must not be null
+     * returns      True if added, false if the ring is full
+     */
+    public boolean offer(T item){
+        while (true) {
+            long tail = mTail.get();
+            int index = (int) (tail & mMask);
+            long diff = mSequence.get(index) - tail;
+
+            if (diff == 0) {
+                // Slot is free, try to claim it
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mItems.lazySet(index, item);
+                    mSequence.set(index, tail + 1); // publish
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // consumer hasn't freed this slot yet, ring is full
+            }
+            // Otherwise another producer beat us to it, go around again
+        }
+    }
+
+    /* Remove the oldest published element. Consumer thread only
+     * returns  The element, or null if nothing is published
+     */
+    public T poll(){
+        int index = (int) (mHead & mMask);
+        if (mSequence.get(index) != mHead + 1) return null;
+
+        T item = mItems.get(index);
+        mItems.lazySet(index, null);
+        mSequence.set(index, mHead + mMask + 1); // hand slot back to producers for the next lap
+        mHead++;
+        return item;
+    }
+
+    // Returns true if nothing is published. Only exact on the consumer thread
+    public boolean isEmpty(){
+        return mSequence.get((int) (mHead & mMask)) != mHead + 1;
+    }
+}
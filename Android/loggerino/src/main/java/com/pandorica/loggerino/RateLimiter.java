@@ -0,0 +1,52 @@
+package com.pandorica.loggerino;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Lock-free token bucket
+ *
+ * Kept as a single "theoretical arrival time" (the generic cell rate algorithm): each allowed
+ * entry pushes it one interval into the future, and an entry is refused while it is more than a
+ * burst ahead of now. That is equivalent to a bucket of burst tokens refilled at rate per second,
+ * but needs only one CAS per call. Refused entries are counted until the next allowed one, which
+ * collects the count so a summary can be reported.
+ */
+class RateLimiter {
+
+    private final long mInterval;       // ns per token
+    private final long mTolerance;      // How far ahead of now the arrival time may run, in ns
+    private final AtomicLong mArrival = new AtomicLong(Long.MIN_VALUE); // Theoretical arrival time
+    private final AtomicLong mSuppressed = new AtomicLong();           // Refused since last allowed
+
+    /* Constructor
+     * param perSecond  Sustained rate, tokens per second
+     * param burst      Bucket size, entries allowed back to back
+     */
+    public RateLimiter(double perSecond, int burst){
+        mInterval = Math.max(1, (long) (1e9 / perSecond));
+        mTolerance = mInterval * Math.max(1, burst);
+    }
+
+    /* Take a token
+     * param now    Current time from System.nanoTime()
+     * returns      True if allowed
+     */
+    public boolean tryAcquire(long now){
+        while (true) {
+            long arrival = mArrival.get();
+            long start = arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival;
+            long next = start + mInterval;
+            if (next - now > mTolerance) {
+                mSuppressed.incrementAndGet();
+                return false;
+            }
+            if (mArrival.compareAndSet(arrival, next)) return true;
+        }
+    }
+
+    /* Collect the count of refused entries, after an allowed one
+     * returns  Entries refused since the last call, 0 if none
+     */
+    public long takeSuppressed(){
+        return mSuppressed.get() == 0 ? 0 : mSuppressed.getAndSet(0);
+    }
+}
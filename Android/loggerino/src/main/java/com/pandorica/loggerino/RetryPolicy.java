@@ -0,0 +1,52 @@
+package com.pandorica.loggerino;
+
+import java.util.Random;
+
+/* How often, and how far apart, a failed send or sync is tried again
+ *
+ * Delays double with each attempt up to a cap. Half of each delay is fixed and half is random, so
+ * a noisy link doesn't get retries lined up with whatever is upsetting it. Immutable apart from
+ * the random source, which is only used from the IO thread.
+ */
+class RetryPolicy {
+
+    private final int mMaxAttempts;     // Attempts in total, the first one included
+    private final long mBaseDelay;      // Delay after the first failure, ms
+    private final long mMaxDelay;       // Longest delay, ms
+    private final Random mRandom = new Random();
+
+    /* Constructor
+     * param maxAttempts    Attempts in total, at least 1
+     * param baseDelayMs    Delay after the first failure
+     * param maxDelayMs     Longest delay
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs){
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelay = Math.max(1, baseDelayMs);
+        mMaxDelay = Math.max(mBaseDelay, maxDelayMs);
+    }
+
+    // Returns the number of attempts allowed in total
+    public int getMaxAttempts(){
+        return mMaxAttempts;
+    }
+
+    /* Check whether another attempt is allowed
+     * param attempts   Attempts made so far
+     * returns          True if there may be another
+     */
+    public boolean canRetry(int attempts){
+        return attempts < mMaxAttempts;
+    }
+
+    /* Time to wait before trying again
+     * param attempts   Attempts made so far, at least 1
+     * returns          Delay in ms
+     */
+    public long delay(int attempts){
+        int doublings = Math.min(attempts - 1, 30);
+        long delay = Math.min(mMaxDelay, mBaseDelay << doublings);
+        long half = delay / 2;
+        return delay - half + (long) (mRandom.nextDouble() * (half + 1));
+    }
+}
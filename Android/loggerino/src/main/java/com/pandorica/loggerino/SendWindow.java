@@ -0,0 +1,315 @@
+package com.pandorica.loggerino;
+
+/* Book-keeping for the protocol v2 sliding window
+ *
+ * Frames get 8-bit sequence numbers that wrap. Up to size() frames may be in flight; each is
+ * copied into a per-slot buffer, with references to the entries it carries, and kept until a
+ * cumulative ACK covers it or it is cancelled, so it can be resent on a NAK or a timeout. Slot
+ * buffers are allocated once at the largest log frame the session has reserved for, and reused.
+ * IO thread only.
+ *
+ * The device only takes frames in order, so a lost frame is resent along with every frame after
+ * it (go-back-N). It may NAK each frame that arrives after a gap, so a resent frame expects one
+ * repeat NAK for each frame that was sent after it before the resend; those, and any within a
+ * round trip estimated from ACKs, are told apart from a NAK for the resent frame.
+ */
+class SendWindow {
+
+    public static final int SEQ_MODULO = 256;       // Sequence numbers are 8-bit
+    public static final int MAX_SIZE = SEQ_MODULO / 2; // Keeps old and new ACKs unambiguous
+    private static final long INITIAL_RTT_MS = 100;   // Round trip assumed before anything is ACKed
+
+    private final byte[][] mFrames;     // Encoded frame per slot, reused
+    private final int[] mLengths;       // Length of the frame in each slot, 0 once acknowledged
+    private final long[] mSentAt;       // Last (re)send time per slot, in ms
+    private final int[] mSends;         // Attempts at each slot, not counting go-back resends
+    private final boolean[] mResent;    // True once a slot was sent more than once
+    private final int[] mRepeats;       // Repeat NAKs still expected for each slot since its last resend
+    private final Object[][] mCarried;  // Entries in the frame in each slot, reused
+    private final int[] mCarriedCount;  // Number of them
+    private int mSize = 1;              // Negotiated window size
+    private int mFrameBytes = 64;       // Least a slot buffer is allocated with
+    private int mFrameEntries = 16;     // Least a carried array is allocated with
+    private int mBase = 0;              // Oldest unacknowledged sequence number
+    private int mNext = 0;              // Sequence number of the next new frame
+    private int mInFlight = 0;          // Frames sent but not acknowledged
+    private long mSrtt = -1;            // Smoothed round trip in ms, -1 until the first sample
+    private long mRttVar = 0;           // Its mean deviation, in ms
+
+    public SendWindow(){
+        mFrames = new byte[MAX_SIZE][];
+        mLengths = new int[MAX_SIZE];
+        mSentAt = new long[MAX_SIZE];
+        mSends = new int[MAX_SIZE];
+        mResent = new boolean[MAX_SIZE];
+        mRepeats = new int[MAX_SIZE];
+        mCarried = new Object[MAX_SIZE][];
+        mCarriedCount = new int[MAX_SIZE];
+    }
+
+    /* Forget everything in flight and start numbering from zero. The link may have changed
+     * speed, so the round trip is measured again
+     * param size   The window size, clamped to 1..MAX_SIZE
+     */
+    public void reset(int size){
+        mSize = Math.max(1, Math.min(MAX_SIZE, size));
+        for (int i = 0; i < MAX_SIZE; i++) {
+            mLengths[i] = 0;
+            mCarriedCount[i] = 0;
+        }
+        mBase = 0;
+        mNext = 0;
+        mInFlight = 0;
+        mSrtt = -1;
+        mRttVar = 0;
+    }
+
+    /* Size the slots for the largest frame the session sends in the normal run of things, so a
+     * bigger frame turning up doesn't grow them a step at a time. Buffers already allocated
+     * smaller are replaced as their slots come round; anything bigger, such as an expanded
+     * message, still grows the slot it lands in
+     * param bytes      Longest frame
+     * param entries    Most entries in one frame
+     */
+    public void reserve(int bytes, int entries){
+        mFrameBytes = Math.max(mFrameBytes, bytes);
+        mFrameEntries = Math.max(mFrameEntries, entries);
+    }
+
+    // Returns the window size
+    public int size(){
+        return mSize;
+    }
+
+    // Returns true if another frame may be sent
+    public boolean canSend(){
+        return mInFlight < mSize;
+    }
+
+    // Returns true if nothing is waiting for acknowledgement
+    public boolean isEmpty(){
+        return mInFlight == 0;
+    }
+
+    // Returns the sequence number the next frame must carry
+    public int nextSequence(){
+        return mNext;
+    }
+
+    // Returns the oldest sequence number not acknowledged, nextSequence() if there is none
+    public int oldestSequence(){
+        return mBase;
+    }
+
+    /* Check whether the device is asking for a frame the window has already let go of, because
+     * an ACK or CAN was garbled on the way back. Nothing sent after it can get through then
+     * param seq    The sequence number the device NAKed
+     * returns      True if it isn't held and was sent at most MAX_SIZE frames ago
+     */
+    public boolean released(int seq){
+        if (seq == mNext) return false;
+        if (inFlight(seq)) return mLengths[seq % MAX_SIZE] == 0;
+        int behind = (mBase - seq + SEQ_MODULO) % SEQ_MODULO;
+        return behind > 0 && behind <= MAX_SIZE;
+    }
+
+    /* Record a frame that was just sent with nextSequence()
+     * param frame      The encoded frame, copied for retransmission
+     * param length     Number of bytes of frame to keep
+     * param carried    The entries in it
+     * param count      Number of entries
+     * param now        Current time in ms
+     */
+    public void sent(byte[] frame, int length, Object[] carried, int count, long now){
+        int slot = mNext % MAX_SIZE;
+        if (mFrames[slot] == null || mFrames[slot].length < Math.max(length, mFrameBytes)) mFrames[slot] = new byte[Math.max(length, mFrameBytes)];
+        System.arraycopy(frame, 0, mFrames[slot], 0, length);
+        if (mCarried[slot] == null || mCarried[slot].length < Math.max(count, mFrameEntries)) mCarried[slot] = new Object[Math.max(count, mFrameEntries)];
+        System.arraycopy(carried, 0, mCarried[slot], 0, count);
+        mCarriedCount[slot] = count;
+        mLengths[slot] = length;
+        mSentAt[slot] = now;
+        mSends[slot] = 1;
+        mResent[slot] = false;
+        mRepeats[slot] = 0;
+        mNext = (mNext + 1) % SEQ_MODULO;
+        mInFlight++;
+    }
+
+    /* Cumulative acknowledgement: everything up to and including seq arrived
+     * param seq    The acknowledged sequence number
+     * param now    Current time in ms
+     * returns      Number of frames released, 0 for a stale or unknown ACK
+     */
+    public int acknowledge(int seq, long now){
+        if (!inFlight(seq)) return 0;
+        int slot = seq % MAX_SIZE;
+        if (mLengths[slot] != 0 && !mResent[slot]) sampleRoundTrip(now - mSentAt[slot]);
+        int released = 0;
+        int stop = (seq + 1) % SEQ_MODULO;
+        while (mBase != stop) {
+            mLengths[mBase % MAX_SIZE] = 0;
+            mBase = (mBase + 1) % SEQ_MODULO;
+            mInFlight--;
+            released++;
+        }
+        return released;
+    }
+
+    /* Drop a single frame the device cancelled, without acknowledging earlier ones
+     * param seq    The cancelled sequence number
+     */
+    public void cancel(int seq){
+        if (!inFlight(seq)) return;
+        if (seq == mBase) {
+            mLengths[seq % MAX_SIZE] = 0;
+        } else {
+            mLengths[seq % MAX_SIZE] = 0; // leave the hole, a later ACK covers it
+        }
+        skipReleased();
+    }
+
+    /* Mark a frame as sent again, after a NAK or timeout
+     * param seq        The sequence number
+     * param now        Current time in ms
+     * param attempt    True for the frame that was lost, false for one resent only because it
+     *                  came after it
+     * returns          The length of the frame to resend from frame(seq), or 0 if it isn't in flight
+     */
+    public int resend(int seq, long now, boolean attempt){
+        if (!inFlight(seq)) return 0;
+        int slot = seq % MAX_SIZE;
+        if (mLengths[slot] == 0) return 0;
+        mSentAt[slot] = now;
+        mResent[slot] = true;
+        if (attempt) {
+            mSends[slot]++;
+            mRepeats[slot] = (mNext - seq - 1 + SEQ_MODULO) % SEQ_MODULO; // frames already on their way behind it
+        }
+        return mLengths[slot];
+    }
+
+    /* Check whether a NAK repeats one already acted on: it answers a copy of a later frame sent
+     * before the resend, or the frame was resent less than a round trip ago, so the NAK was sent
+     * before the device could have seen it. Each call counts off one expected repeat
+     * param seq    The NAKed sequence number
+     * param now    Current time in ms
+     * returns      True if the NAK should be ignored
+     */
+    public boolean repeatedNak(int seq, long now){
+        if (!inFlight(seq)) return false;
+        int slot = seq % MAX_SIZE;
+        if (mLengths[slot] == 0 || !mResent[slot]) return false;
+        if (mRepeats[slot] > 0) {
+            mRepeats[slot]--;
+            return true;
+        }
+        return now - mSentAt[slot] < roundTrip();
+    }
+
+    // Returns the round trip plus four deviations, in ms, as TCP sizes its timeout
+    public long roundTrip(){
+        return mSrtt < 0 ? INITIAL_RTT_MS : mSrtt + Math.max(1, 4 * mRttVar);
+    }
+
+
+    // Returns the buffer holding a frame, valid up to the length resend() returns
+    public byte[] frame(int seq){
+        return mFrames[seq % MAX_SIZE];
+    }
+
+    /* Copy out the entries a frame carries
+     * param seq    The sequence number
+     * param into   Array for them, at least as long as any frame's count
+     * returns      Number of entries, 0 if it isn't in flight
+     */
+    public int carried(int seq, Object[] into){
+        int slot = seq % MAX_SIZE;
+        if (!inFlight(seq) || mLengths[slot] == 0) return 0;
+        System.arraycopy(mCarried[slot], 0, into, 0, mCarriedCount[slot]);
+        return mCarriedCount[slot];
+    }
+
+    /* Copy out the entries a recent frame carried, whether it is still held or not, as long as
+     * its slot hasn't been reused. After a garbled ACK these are the ones to send again
+     * param seq    The sequence number
+     * param into   Array for them, at least as long as any frame's count
+     * returns      Number of entries, 0 if it wasn't sent or its slot was reused
+     */
+    public int sentEntries(int seq, Object[] into){
+        int since = (mNext - seq + SEQ_MODULO) % SEQ_MODULO;
+        int slot = seq % MAX_SIZE;
+        if (since == 0 || since > MAX_SIZE || mCarriedCount[slot] == 0) return 0;
+        System.arraycopy(mCarried[slot], 0, into, 0, mCarriedCount[slot]);
+        return mCarriedCount[slot];
+    }
+
+    /* Check whether the oldest frame has gone unacknowledged for too long. Only it is timed,
+     * since resending it resends every frame after it too
+     * param now        Current time in ms
+     * param timeout    How long a frame may wait, in ms
+     * returns          Its sequence number, or -1 if it hasn't timed out
+     */
+    public int expired(long now, long timeout){
+        int seq = oldestHeld();
+        if (seq < 0) return -1;
+        int slot = seq % MAX_SIZE;
+        return now - mSentAt[slot] >= timeout ? seq : -1;
+    }
+
+    /* Time until the oldest frame times out
+     * param now        Current time in ms
+     * param timeout    How long a frame may wait, in ms
+     * returns          Milliseconds, or -1 if nothing is in flight
+     */
+    public long untilExpiry(long now, long timeout){
+        int seq = oldestHeld();
+        if (seq < 0) return -1;
+        int slot = seq % MAX_SIZE;
+        return Math.max(0, mSentAt[slot] + timeout - now);
+    }
+
+    // Returns the oldest sequence number still held, not cancelled, or -1 if there is none
+    private int oldestHeld(){
+        for (int seq = mBase; seq != mNext; seq = (seq + 1) % SEQ_MODULO) {
+            if (mLengths[seq % MAX_SIZE] != 0) return seq;
+        }
+        return -1;
+    }
+
+    /* Number of attempts at a frame: its first send and every resend because it was lost
+     * param seq    The sequence number
+     * returns      The count, 0 if not in flight
+     */
+    public int sends(int seq){
+        return inFlight(seq) ? mSends[seq % MAX_SIZE] : 0;
+    }
+
+    /* Fold a round trip into the estimate, as RFC 6298 does. Only frames sent once are sampled,
+     * since an ACK for a resent frame may answer either copy
+     * param rtt    Time from sending to the ACK, in ms
+     */
+    private void sampleRoundTrip(long rtt){
+        if (mSrtt < 0) {
+            mSrtt = rtt;
+            mRttVar = rtt / 2;
+        } else {
+            mRttVar = (3 * mRttVar + Math.abs(mSrtt - rtt)) / 4;
+            mSrtt = (7 * mSrtt + rtt) / 8;
+        }
+    }
+
+    // True if seq is between the oldest unacknowledged and the newest sent
+    private boolean inFlight(int seq){
+        int offset = (seq - mBase + SEQ_MODULO) % SEQ_MODULO;
+        return offset < (mNext - mBase + SEQ_MODULO) % SEQ_MODULO;
+    }
+
+    // Slide the base past frames that were cancelled out of order
+    private void skipReleased(){
+        while (mBase != mNext && mLengths[mBase % MAX_SIZE] == 0) {
+            mBase = (mBase + 1) % SEQ_MODULO;
+            mInFlight--;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.pandorica.loggerino;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Transport over a connected TCP socket, for a viewer on a desktop reached through
+ * "adb forward" or Wi-Fi
+ *
+ * The channel is used in blocking mode: one thread reads and passes input on, while the session's
+ * IO thread writes. Frames sent together go out in one gathering write, straight from the
+ * session's buffers. There is no baud rate, so the link runs as fast as the network does; write
+ * timeouts don't apply, a stuck viewer holds up only its own session until TCP gives up on it.
+ */
+public class SocketTransport implements Transport {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final SocketChannel mChannel;
+    private final String mName;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mClosed = false;
+
+    // Wrappers for the buffers being written, reused while the buffers are the same arrays
+    private ByteBuffer[] mWrappers = new ByteBuffer[16];
+
+    /* Constructor
+     * param channel    A connected channel, put in blocking mode with Nagle's algorithm off
+     * throws IOException if the channel can't be set up
+     */
+    public SocketTransport(SocketChannel channel) throws IOException{
+        mChannel = channel;
+        mChannel.configureBlocking(true);
+        mChannel.socket().setTcpNoDelay(true); // Single-byte ACKs mustn't wait for company
+        mName = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    @Override
+    public void open(final Listener listener){
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run(){
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                try {
+                    while (!mClosed) {
+                        buffer.clear();
+                        int n = mChannel.read(buffer);
+                        if (n < 0) throw new EOFException("Viewer closed the connection");
+                        if (n > 0) listener.onNewData(buffer.array(), 0, n);
+                    }
+                }catch (IOException ex){
+                    if (!mClosed) listener.onRunError(ex);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int write(byte[] buf, int offset, int len, int timeout) throws IOException{
+        ByteBuffer src = wrap(0, buf, offset, len);
+        while (src.hasRemaining()) mChannel.write(src);
+        return len;
+    }
+
+    @Override
+    public void write(byte[][] bufs, int[] lengths, int count, int timeout) throws IOException{
+        if (mWrappers.length < count) {
+            ByteBuffer[] wrappers = new ByteBuffer[count];
+            System.arraycopy(mWrappers, 0, wrappers, 0, mWrappers.length);
+            mWrappers = wrappers;
+        }
+
+        long remaining = 0;
+        for (int i = 0; i < count; i++) remaining += wrap(i, bufs[i], 0, lengths[i]).remaining();
+        while (remaining > 0) remaining -= mChannel.write(mWrappers, 0, count);
+    }
+
+    /* Point a reusable wrapper at part of an array
+     * param i      Index of the wrapper
+     * param buf    The array
+     * param offset Where the bytes start
+     * param len    How many
+     * returns      The wrapper
+     */
+    private ByteBuffer wrap(int i, byte[] buf, int offset, int len){
+        ByteBuffer wrapper = mWrappers[i];
+        if (wrapper == null || wrapper.array() != buf) mWrappers[i] = wrapper = ByteBuffer.wrap(buf);
+        wrapper.limit(offset + len);
+        wrapper.position(offset);
+        return wrapper;
+    }
+
+    @Override
+    public boolean hasBaudRate(){
+        return false;
+    }
+
+    @Override
+    public void setBaudRate(int rate){
+        // No such thing
+    }
+
+    @Override
+    public void purgeInput(){
+        // Nothing is held below the listener
+    }
+
+    @Override
+    public String getName(){
+        return mName;
+    }
+
+    @Override
+    public void close(){
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            mChannel.close(); // Unblocks the reader
+        }catch (IOException ex){
+            // We're closing anyway...
+        }
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,72 @@
+package com.pandorica.loggerino;
+
+import java.io.IOException;
+
+/* A byte stream to a display, under the protocol in protocol.txt
+ *
+ * LogKeeper opens a USB serial transport for every Arduino plugged in; other transports are handed
+ * to LogKeeper.connect(). All writes come from the one IO thread of the session using the
+ * transport. Input arrives on whatever thread the transport reads on and is passed straight to
+ * the listener.
+ */
+public interface Transport {
+
+    // Receives input from a transport
+    interface Listener{
+
+        /* Called with bytes as they arrive, always from the same thread
+         * param data   Buffer holding the bytes, only valid during the call
+         * param offset Where they start
+         * param length How many
+         */
+        void onNewData(byte[] data, int offset, int length);
+
+        // Called once if the transport fails; nothing more arrives after it
+        void onRunError(Exception e);
+    }
+
+    /* Open the stream and start passing input to the listener
+     * param listener   Receives everything read
+     * throws IOException if it can't be opened
+     */
+    void open(Listener listener) throws IOException;
+
+    /* Write bytes
+     * param buf        The bytes to write
+     * param offset     Where in buf to start
+     * param len        Number of bytes to write
+     * param timeout    Longest to wait, in ms, where the transport can time out
+     * returns          Number of bytes written
+     * throws IOException on failure
+     */
+    int write(byte[] buf, int offset, int len, int timeout) throws IOException;
+
+    /* Write several buffers in one go, in order
+     * param bufs       The buffers, bufs[0] to bufs[count - 1]
+     * param lengths    Number of bytes to write from the start of each
+     * param count      Number of buffers
+     * param timeout    Longest to wait, in ms, where the transport can time out
+     * throws IOException on failure
+     */
+    void write(byte[][] bufs, int[] lengths, int count, int timeout) throws IOException;
+
+    // True if the link has a speed that can be changed, and so is worth negotiating
+    boolean hasBaudRate();
+
+    /* Change the link speed, ignored without hasBaudRate()
+     * param rate   The new speed in baud
+     * throws IOException on failure
+     */
+    void setBaudRate(int rate) throws IOException;
+
+    /* Drop anything received but not yet passed to the listener
+     * throws IOException on failure
+     */
+    void purgeInput() throws IOException;
+
+    // Returns a name for the other end, for logs and to tell sessions apart
+    String getName();
+
+    // Close the stream and stop reading. Safe to call more than once
+    void close();
+}
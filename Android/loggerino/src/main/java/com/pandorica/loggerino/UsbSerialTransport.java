@@ -0,0 +1,126 @@
+package com.pandorica.loggerino;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Transport over the first port of a USB serial device, using the serial library
+ *
+ * The library writes from the start of an array, so a write from anywhere else is copied into a
+ * reusable scratch array first. A gathered write is copied into the same array and goes out as a
+ * single USB transfer. The array only ever grows, so once it holds the largest write nothing is
+ * allocated.
+ */
+class UsbSerialTransport implements Transport {
+
+    private final UsbManager mManager;
+    private final UsbSerialDriver mDriver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private UsbSerialPort mSerialPort;
+    private SerialInputOutputManager mSerialIoManager;
+    private boolean mClosed = false;
+
+    private byte[] mScratch = new byte[1024];   // Copies of offset and gathered writes
+
+    /* Constructor
+     * param manager    The USB manager, with permission for the device already granted
+     * param driver     Driver of the device
+     */
+    public UsbSerialTransport(UsbManager manager, UsbSerialDriver driver){
+        mManager = manager;
+        mDriver = driver;
+    }
+
+    @Override
+    public void open(final Listener listener) throws IOException{
+
+        // Tweaked rom serial library example
+        UsbDeviceConnection connection = mManager.openDevice(mDriver.getDevice());
+
+        mSerialPort = mDriver.getPorts().get(0);
+        mSerialPort.open(connection);
+        mSerialIoManager = new SerialInputOutputManager(mSerialPort, new SerialInputOutputManager.Listener() {
+            @Override
+            public void onNewData(byte[] data){
+                listener.onNewData(data, 0, data.length);
+            }
+
+            @Override
+            public void onRunError(Exception e){
+                listener.onRunError(e);
+            }
+        });
+        mExecutor.submit(mSerialIoManager);
+    }
+
+    @Override
+    public int write(byte[] buf, int offset, int len, int timeout) throws IOException{
+        byte[] out = buf;
+        if (offset != 0) {
+            out = scratch(len);
+            System.arraycopy(buf, offset, out, 0, len);
+        }
+        mSerialPort.write(out, len, timeout);
+        return len;
+    }
+
+    @Override
+    public void write(byte[][] bufs, int[] lengths, int count, int timeout) throws IOException{
+        int total = 0;
+        for (int i = 0; i < count; i++) total += lengths[i];
+
+        byte[] out = scratch(total);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(bufs[i], 0, out, pos, lengths[i]);
+            pos += lengths[i];
+        }
+        mSerialPort.write(out, total, timeout);
+    }
+
+    // Returns the scratch array, grown if it is shorter than len bytes
+    private byte[] scratch(int len){
+        if (mScratch.length < len) mScratch = new byte[Math.max(len, mScratch.length * 2)];
+        return mScratch;
+    }
+
+    @Override
+    public boolean hasBaudRate(){
+        return true;
+    }
+
+    @Override
+    public void setBaudRate(int rate) throws IOException{
+        mSerialPort.setParameters(rate, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+    }
+
+    @Override
+    public void purgeInput() throws IOException{
+        mSerialPort.purgeHwBuffers(true, false); // Clear hardware buffers
+    }
+
+    @Override
+    public String getName(){
+        return mDriver.getDevice().getDeviceName();
+    }
+
+    @Override
+    public synchronized void close(){
+        if (mClosed) return;
+        mClosed = true;
+        if (mSerialIoManager != null) mSerialIoManager.stop();
+        mExecutor.shutdown();
+        try {
+            if (mSerialPort != null) mSerialPort.close();
+        }catch (Exception ex){
+            // We're closing anyway...
+        }
+    }
+}